@@ -3,11 +3,14 @@ package com.wonrui.zxinglite;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.os.Bundle;
 import android.os.Handler;
+import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -16,8 +19,15 @@ import android.view.Window;
 import android.view.WindowManager;
 
 import com.wonrui.zxinglite.camera.CameraManager;
+import com.wonrui.zxinglite.camera.CameraSession;
+import com.wonrui.zxinglite.camera.FrameRecorder;
+import com.wonrui.zxinglite.camera.RecordedFrameSource;
 import com.wonrui.zxinglite.decode.CaptureActivityHandler;
+import com.wonrui.zxinglite.decode.DecodeMetrics;
 import com.wonrui.zxinglite.decode.DecodeThread;
+import com.wonrui.zxinglite.decode.DecodeWorkerPool;
+import com.wonrui.zxinglite.decode.DuplicateFilter;
+import com.wonrui.zxinglite.preferences.Config;
 import com.wonrui.zxinglite.utils.AmbientLightManager;
 import com.wonrui.zxinglite.utils.BeepManager;
 import com.wonrui.zxinglite.utils.FinishListener;
@@ -27,12 +37,63 @@ import com.google.zxing.BarcodeFormat;
 import com.google.zxing.Result;
 import com.google.zxing.ResultPoint;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
 public class CaptureActivity extends Activity implements
         SurfaceHolder.Callback, View.OnClickListener {
     private static final String TAG = CaptureActivity.class.getSimpleName();
 
+    /**
+     * Result extra holding the {@link DecodeMetrics.Snapshot} of the scan
+     */
+    public static final String EXTRA_DECODE_METRICS = "DecodeMetrics";
+    /**
+     * Optional path of a frame recording, or directory of frame files, to decode instead of the
+     * camera's preview frames. See {@link RecordedFrameSource}.
+     */
+    public static final String EXTRA_REPLAY_FILE = "ReplayFile";
+    /**
+     * Optional path to record the preview frames decoded during the scan to, for replaying them
+     * later with {@link #EXTRA_REPLAY_FILE}. An existing file is replaced.
+     */
+    public static final String EXTRA_RECORD_FILE = "RecordFile";
+    /**
+     * Whether to render a thumbnail of the decoded frame with the result points, true by default.
+     * Callers which only want the text can turn it off.
+     */
+    public static final String EXTRA_RESULT_THUMBNAIL = "ResultThumbnail";
+    /**
+     * Whether to keep scanning after a result, defaulting to the bulk mode preference. Each new
+     * code is then sent as a local {@link #ACTION_SCAN_RESULT} broadcast, and all of them are
+     * returned on exit in {@link #EXTRA_SCAN_RESULTS}.
+     */
+    public static final String EXTRA_BULK_MODE = "BulkMode";
+    /**
+     * Whether to find every code in a frame rather than the first one, defaulting to the multiple
+     * barcodes preference. See {@link #handleDecodeMultiple(Result[], Bitmap, float)}.
+     */
+    public static final String EXTRA_MULTIPLE = "Multiple";
+    /**
+     * Local broadcast of each code found in bulk mode, with the text in "ScanResult" and the format
+     * in {@link #EXTRA_SCAN_FORMAT}
+     */
+    public static final String ACTION_SCAN_RESULT = "com.wonrui.zxinglite.SCAN_RESULT";
+    public static final String EXTRA_SCAN_FORMAT = "ScanFormat";
+    /**
+     * Result extra with the texts of all codes found in bulk or multiple mode, in order
+     */
+    public static final String EXTRA_SCAN_RESULTS = "ScanResults";
+    /**
+     * Frames per second to replay at, or 0 (the default) to decode every frame as fast as possible
+     */
+    public static final String EXTRA_REPLAY_FPS = "ReplayFps";
+    /**
+     * Whether to start over after the last frame of the replay, true by default
+     */
+    public static final String EXTRA_REPLAY_LOOP = "ReplayLoop";
+
     private CameraManager cameraManager;
     private ViewfinderView viewfinderView;
     private BeepManager beepManager;
@@ -40,7 +101,13 @@ public class CaptureActivity extends Activity implements
     private InactivityTimer inactivityTimer;
     private boolean hasSurface;
     private CaptureActivityHandler handler;
+    /**
+     * Records the decoded frames, or null
+     */
+    private FrameRecorder frameRecorder;
     private boolean isFlashlightOpen;
+    private boolean bulkMode;
+    private final ArrayList<String> bulkResults = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -70,7 +137,9 @@ public class CaptureActivity extends Activity implements
      */
     @Override
     public void onBackPressed() {
-        setResult(0, new Intent().putExtra("ScanResult", ""));
+        if (bulkResults.isEmpty()) {
+            setResult(0, new Intent().putExtra("ScanResult", ""));
+        }
         super.onBackPressed();
     }
 
@@ -81,12 +150,18 @@ public class CaptureActivity extends Activity implements
         // 相机初始化的动作需要开启相机并测量屏幕大小，这些操作
         // 不建议放到onCreate中，因为如果在onCreate中加上首次启动展示帮助信息的代码的话，
         // 会导致扫描窗口的尺寸计算有误的bug
-        cameraManager = new CameraManager(getApplication());
+        // 相机由进程内共享的会话管理，上一次扫描的相机可能仍然打开
+        cameraManager = CameraSession.getInstance(this).acquire();
         viewfinderView = (ViewfinderView) findViewById(R.id.viewfinder_view);
         viewfinderView.setCameraManager(cameraManager);
 
         handler = null;
 
+        // 连续扫描模式：识别成功后不退出，继续扫描
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        bulkMode = getIntent().getBooleanExtra(EXTRA_BULK_MODE,
+                prefs.getBoolean(Config.KEY_BULK_MODE, false));
+
         // 加载声音配置，其实在BeemManager的构造器中也会调用该方法，即在onCreate的时候会调用一次
         beepManager.updatePrefs();
         // 启动闪光灯调节器
@@ -113,12 +188,15 @@ public class CaptureActivity extends Activity implements
     protected void onPause() {
         if (handler != null) {
             handler.quitSynchronously();
+            Log.i(TAG, "Decode metrics: " + handler.getMetrics().snapshot());
             handler = null;
         }
+        closeFrameRecorder();
         inactivityTimer.onPause();
         ambientLightManager.stop();
         beepManager.close();
-        cameraManager.closeDriver();
+        // 不立即关闭相机，由会话在保活时间后或内存紧张时关闭
+        CameraSession.getInstance(this).release();
         //historyManager = null; // Keep for onActivityResult
         if (!hasSurface) {
             SurfaceView surfaceView = (SurfaceView) findViewById(R.id.preview_view);
@@ -138,27 +216,147 @@ public class CaptureActivity extends Activity implements
         if (surfaceHolder == null) {
             throw new IllegalStateException("No SurfaceHolder provided");
         }
-        if (cameraManager.isOpen()) {
+        String replayFile = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+        if (replayFile != null) {
+            initReplay(replayFile);
+            return;
+        }
+        if (handler != null || cameraManager.isOpening()) {
             Log.w(TAG, "initCamera() while already open -- late SurfaceView callback?");
             return;
         }
+        if (cameraManager.isOpen()) {
+            // 相机由上一次扫描保持打开，只需把预览切换到当前界面
+            try {
+                cameraManager.setPreviewDisplay(surfaceHolder);
+            } catch (IOException ioe) {
+                Log.w(TAG, ioe);
+                displayFrameworkBugMessageAndExit();
+                return;
+            }
+            startDecoding();
+            return;
+        }
+        // 在后台线程打开并配置相机，避免阻塞界面；onPause时关闭相机会取消打开
+        cameraManager.openDriverAsync(surfaceHolder, new CameraManager.OpenCallback() {
+            @Override
+            public void onCameraOpened() {
+                startDecoding();
+            }
+
+            @Override
+            public void onCameraOpenFailed(Exception e) {
+                // Barcode Scanner has seen crashes in the wild of this variety:
+                // java.?lang.?RuntimeException: Fail to connect to camera service
+                Log.w(TAG, "Unexpected error initializing camera", e);
+                displayFrameworkBugMessageAndExit();
+            }
+        });
+    }
+
+    /**
+     * Starts the preview and the decoders once the camera is open.
+     */
+    private void startDecoding() {
+        if (handler != null) {
+            return;
+        }
+        startRecording();
+        try {
+            // Creating the handler starts the preview, which can throw a RuntimeException.
+            handler = new CaptureActivityHandler(this, cameraManager, DecodeThread.ALL_MODE,
+                    DecodeWorkerPool.defaultWorkerCount(), wantsThumbnail(), wantsMultiple(),
+                    newBulkFilter());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unexpected error starting the preview", e);
+            displayFrameworkBugMessageAndExit();
+        }
+    }
+
+    /**
+     * 按需录制解码的预览帧，用于复现现场识别失败的问题
+     */
+    private void startRecording() {
+        String recordFile = getIntent().getStringExtra(EXTRA_RECORD_FILE);
+        if (recordFile == null || frameRecorder != null) {
+            return;
+        }
         try {
-            cameraManager.openDriver(surfaceHolder);
-            // Creating the handler starts the preview, which can also throw a RuntimeException.
-            if (handler == null) {
-                handler = new CaptureActivityHandler(this, cameraManager, DecodeThread.ALL_MODE);
+            frameRecorder = cameraManager.newFrameRecorder(new File(recordFile));
+            Log.i(TAG, "Recording frames to " + recordFile);
+        } catch (IOException | RuntimeException e) {
+            // Scan anyway, just without the recording
+            Log.w(TAG, "Could not record frames to " + recordFile, e);
+        }
+    }
+
+    private void closeFrameRecorder() {
+        if (frameRecorder != null) {
+            Log.i(TAG, "Recorded " + frameRecorder.getFrameCount() + " frames");
+            try {
+                frameRecorder.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, ioe);
             }
+            frameRecorder = null;
+        }
+    }
+
+    /**
+     * @return where the decode workers record the frames they decode, or null
+     */
+    public FrameRecorder getFrameRecorder() {
+        return frameRecorder;
+    }
+
+    /**
+     * Decodes recorded frames instead, leaving the camera closed.
+     */
+    private void initReplay(String replayFile) {
+        if (handler != null) {
+            return;
+        }
+        // 回放时不需要相机，不再保持上一次扫描打开的相机
+        cameraManager.closeDriver();
+        try {
+            RecordedFrameSource frameSource = RecordedFrameSource.open(new File(replayFile),
+                    getIntent().getIntExtra(EXTRA_REPLAY_FPS, 0),
+                    getIntent().getBooleanExtra(EXTRA_REPLAY_LOOP, true));
+            Log.i(TAG, "Replaying " + frameSource.getFrameCount() + " frames from " + replayFile);
+            handler = new CaptureActivityHandler(this, frameSource, DecodeThread.ALL_MODE,
+                    DecodeWorkerPool.defaultWorkerCount(), wantsThumbnail(), wantsMultiple(),
+                    newBulkFilter());
         } catch (IOException ioe) {
             Log.w(TAG, ioe);
             displayFrameworkBugMessageAndExit();
-        } catch (RuntimeException e) {
-            // Barcode Scanner has seen crashes in the wild of this variety:
-            // java.?lang.?RuntimeException: Fail to connect to camera service
-            Log.w(TAG, "Unexpected error initializing camera", e);
-            displayFrameworkBugMessageAndExit();
         }
     }
 
+    private boolean wantsMultiple() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        return getIntent().getBooleanExtra(EXTRA_MULTIPLE,
+                prefs.getBoolean(Config.KEY_MULTIPLE_BARCODES, false));
+    }
+
+    private boolean wantsThumbnail() {
+        return getIntent().getBooleanExtra(EXTRA_RESULT_THUMBNAIL, true);
+    }
+
+    /**
+     * @return the duplicate filter of bulk mode, or null to stop at the first result
+     */
+    private DuplicateFilter newBulkFilter() {
+        if (!bulkMode) {
+            return null;
+        }
+        // Remembering duplicates reports a code again once it has been out of sight for a while,
+        // otherwise each code is reported only once
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean rememberDuplicates = prefs.getBoolean(Config.KEY_REMEMBER_DUPLICATES, true);
+        return new DuplicateFilter(rememberDuplicates ?
+                DuplicateFilter.DEFAULT_WINDOW_MS : DuplicateFilter.FOREVER);
+    }
+
     private void displayFrameworkBugMessageAndExit() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(getString(R.string.app_name));
@@ -204,22 +402,92 @@ public class CaptureActivity extends Activity implements
      *
      * @param rawResult   The contents of the barcode.
      * @param scaleFactor amount by which thumbnail was scaled
-     * @param barcode     A greyscale bitmap of the camera data which was decoded.
+     * @param barcode     A greyscale bitmap of the camera data which was decoded, or null if no
+     *                    thumbnail was wanted. Only valid until the next result.
      */
     public void handleDecode(Result rawResult, Bitmap barcode, float scaleFactor) {
         inactivityTimer.onActivity();
 
-        boolean fromLiveScan = barcode != null;
-        if (fromLiveScan) {
-            // Then not from history, so beep/vibrate and we have an image to draw on
-            beepManager.playBeepSoundAndVibrate();
+        beepManager.playBeepSoundAndVibrate();
+        if (barcode != null) {
             drawResultPoints(barcode, scaleFactor, rawResult);
         }
+        if (bulkMode) {
+            addBulkResult(rawResult);
+            setScanResults(bulkResults);
+            return;
+        }
         // 回传结果给调用改Activity的页面
-        setResult(0, new Intent().putExtra("ScanResult", rawResult.getText()));
+        Intent result = new Intent().putExtra("ScanResult", rawResult.getText());
+        if (handler != null) {
+            result.putExtra(EXTRA_DECODE_METRICS, handler.getMetrics().snapshot());
+        }
+        setResult(0, result);
         finish();
     }
 
+    /**
+     * Like {@link #handleDecode(Result, Bitmap, float)}, for all the codes found in one frame in
+     * multiple mode. The texts are returned in {@link #EXTRA_SCAN_RESULTS}, and joined by line
+     * breaks in "ScanResult".
+     *
+     * @param rawResults  The contents of the barcodes.
+     * @param scaleFactor amount by which thumbnail was scaled
+     * @param barcode     A greyscale bitmap of the camera data which was decoded, or null if no
+     *                    thumbnail was wanted. Only valid until the next result.
+     */
+    public void handleDecodeMultiple(Result[] rawResults, Bitmap barcode, float scaleFactor) {
+        inactivityTimer.onActivity();
+
+        beepManager.playBeepSoundAndVibrate();
+        if (barcode != null) {
+            for (Result rawResult : rawResults) {
+                drawResultPoints(barcode, scaleFactor, rawResult);
+            }
+        }
+        if (bulkMode) {
+            for (Result rawResult : rawResults) {
+                addBulkResult(rawResult);
+            }
+            setScanResults(bulkResults);
+            return;
+        }
+        ArrayList<String> texts = new ArrayList<>(rawResults.length);
+        for (Result rawResult : rawResults) {
+            texts.add(rawResult.getText());
+        }
+        setScanResults(texts);
+        finish();
+    }
+
+    /**
+     * Streams a new code to the caller, which keeps the scanner open.
+     */
+    private void addBulkResult(Result rawResult) {
+        bulkResults.add(rawResult.getText());
+        Intent broadcast = new Intent(ACTION_SCAN_RESULT)
+                .putExtra("ScanResult", rawResult.getText())
+                .putExtra(EXTRA_SCAN_FORMAT, rawResult.getBarcodeFormat().toString());
+        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+    }
+
+    private void setScanResults(ArrayList<String> texts) {
+        StringBuilder joined = new StringBuilder();
+        for (String text : texts) {
+            if (joined.length() > 0) {
+                joined.append('\n');
+            }
+            joined.append(text);
+        }
+        Intent result = new Intent()
+                .putExtra("ScanResult", joined.toString())
+                .putStringArrayListExtra(EXTRA_SCAN_RESULTS, texts);
+        if (handler != null) {
+            result.putExtra(EXTRA_DECODE_METRICS, handler.getMetrics().snapshot());
+        }
+        setResult(0, result);
+    }
+
     /**
      * Superimpose a line for 1D or dots for 2D to highlight the key features of the barcode.
      *
@@ -278,7 +546,9 @@ public class CaptureActivity extends Activity implements
             case R.id.capture_back: // 返回按钮
                 // 由于MainActivity中使用startActivityForResult(intent, 0)来启动当前activity
                 // 因此退出时需返回一个值供MainActivity进行处理
-                setResult(0, new Intent().putExtra("ScanResult", ""));
+                if (bulkResults.isEmpty()) {
+                    setResult(0, new Intent().putExtra("ScanResult", ""));
+                }
                 finish();
                 break;
             case R.id.capture_flashlight:
@@ -25,6 +25,12 @@ import com.wonrui.zxinglite.utils.FrontLightMode;
 public class CameraConfigurationManager {
     private static final String TAG = "CameraConfiguration";
     private final Context context;
+    private final CameraParametersCache parametersCache;
+    /**
+     * The parameters cached for the camera, null if they have to be derived
+     */
+    private CameraParametersCache.Entry cachedParameters;
+    private String cachedSignature;
     private int cwNeededRotation;
     private Point screenResolution;
     private Point cameraResolution;
@@ -34,6 +40,7 @@ public class CameraConfigurationManager {
 
     public CameraConfigurationManager(Context context) {
         this.context = context;
+        this.parametersCache = new CameraParametersCache(context);
     }
 
     public boolean getTorchState(Camera camera) {
@@ -64,7 +71,6 @@ public class CameraConfigurationManager {
     }
 
     public void initFromCameraParameters(OpenCamera camera) {
-        Camera.Parameters parameters = camera.getCamera().getParameters();
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
 
@@ -117,10 +123,24 @@ public class CameraConfigurationManager {
         display.getSize(theScreenResolution);
         screenResolution = theScreenResolution;
         Log.i(TAG, "Screen resolution in current orientation: " + screenResolution);
-        cameraResolution = CameraConfigurationUtils.findBestPreviewSizeValue(parameters, screenResolution);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        cachedParameters = null;
+        cachedSignature = null;
+        if (prefs.getBoolean(Config.KEY_CACHE_CAMERA_PARAMETERS, true)) {
+            cachedSignature = signature(prefs);
+            cachedParameters = parametersCache.load(camera.getIndex(), cachedSignature);
+        }
+        if (cachedParameters != null) {
+            bestPreviewSize = new Point(cachedParameters.previewSize.x, cachedParameters.previewSize.y);
+            Log.i(TAG, "Cached preview size: " + bestPreviewSize);
+        } else {
+            Camera.Parameters parameters = camera.getCamera().getParameters();
+            bestPreviewSize = CameraConfigurationUtils.findBestPreviewSizeValue(parameters, screenResolution);
+            Log.i(TAG, "Best available preview size: " + bestPreviewSize);
+        }
+        cameraResolution = new Point(bestPreviewSize.x, bestPreviewSize.y);
         Log.i(TAG, "Camera resolution: " + cameraResolution);
-        bestPreviewSize = CameraConfigurationUtils.findBestPreviewSizeValue(parameters, screenResolution);
-        Log.i(TAG, "Best available preview size: " + bestPreviewSize);
 
         boolean isScreenPortrait = screenResolution.x < screenResolution.y;
         boolean isPreviewSizePortrait = bestPreviewSize.x < bestPreviewSize.y;
@@ -137,6 +157,53 @@ public class CameraConfigurationManager {
         return screenResolution;
     }
 
+    /**
+     * Applies the parameters the driver accepted on an earlier start in one call, if they are
+     * cached for this camera, build and settings.
+     *
+     * @return true if they were applied, false if they have to be derived with
+     * {@link #setDesiredCameraParameters(OpenCamera, boolean)}
+     */
+    public boolean setCachedCameraParameters(OpenCamera camera) {
+        CameraParametersCache.Entry entry = cachedParameters;
+        if (entry == null) {
+            return false;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.getBoolean(Config.KEY_CACHE_CAMERA_PARAMETERS, true) ||
+                !signature(prefs).equals(cachedSignature)) {
+            // The settings changed since the camera was opened
+            cachedParameters = null;
+            return false;
+        }
+        Camera theCamera = camera.getCamera();
+        try {
+            Camera.Parameters parameters = theCamera.getParameters();
+            if (parameters == null) {
+                return false;
+            }
+            parameters.unflatten(entry.parameters);
+            theCamera.setParameters(parameters);
+        } catch (RuntimeException re) {
+            Log.w(TAG, "Camera rejected cached parameters; deriving them again", re);
+            cachedParameters = null;
+            parametersCache.remove(camera.getIndex());
+            Camera.Parameters parameters = theCamera.getParameters();
+            if (parameters != null) {
+                // The cached preview size may be the one rejected
+                Point previewSize = CameraConfigurationUtils.findBestPreviewSizeValue(parameters, screenResolution);
+                bestPreviewSize.x = previewSize.x;
+                bestPreviewSize.y = previewSize.y;
+                cameraResolution.x = previewSize.x;
+                cameraResolution.y = previewSize.y;
+            }
+            return false;
+        }
+        theCamera.setDisplayOrientation(cwRotationFromDisplayToCamera);
+        Log.i(TAG, "Applied cached camera parameters");
+        return true;
+    }
+
     public void setDesiredCameraParameters(OpenCamera camera, boolean safeMode) {
         Camera theCamera = camera.getCamera();
         Camera.Parameters parameters = theCamera.getParameters();
@@ -192,6 +259,17 @@ public class CameraConfigurationManager {
                     ", but after setting it, preview size is " + afterSize.width + 'x' + afterSize.height);
             bestPreviewSize.x = afterSize.width;
             bestPreviewSize.y = afterSize.height;
+            // Preview buffers are sized from the camera resolution, so it has to follow
+            cameraResolution.x = afterSize.width;
+            cameraResolution.y = afterSize.height;
+        }
+
+        // Whatever the driver accepted, even in safe mode, is what the next start applies
+        if (prefs.getBoolean(Config.KEY_CACHE_CAMERA_PARAMETERS, true)) {
+            cachedSignature = signature(prefs);
+            cachedParameters = new CameraParametersCache.Entry(
+                    new Point(bestPreviewSize.x, bestPreviewSize.y), afterParameters.flatten());
+            parametersCache.save(camera.getIndex(), cachedSignature, cachedParameters);
         }
         // 需要横屏扫描才可以识别，而且条码成像仍然是横向的，下面步骤将解决这个问题。
 //        theCamera.setDisplayOrientation(90);//add 这句代码作用是旋转镜头90度，使相机预览方向正确显示
@@ -203,7 +281,28 @@ public class CameraConfigurationManager {
         doSetTorch(parameters, currentSetting, safeMode);
     }
 
+    /**
+     * @return what the desired parameters are derived from, besides the driver and the build
+     */
+    private String signature(SharedPreferences prefs) {
+        return screenResolution.x + "x" + screenResolution.y +
+                ',' + FrontLightMode.readPref(prefs) +
+                ',' + prefs.getBoolean(Config.KEY_AUTO_FOCUS, true) +
+                ',' + prefs.getBoolean(Config.KEY_DISABLE_CONTINUOUS_FOCUS, true) +
+                ',' + prefs.getBoolean(Config.KEY_INVERT_SCAN, false) +
+                ',' + prefs.getBoolean(Config.KEY_DISABLE_BARCODE_SCENE_MODE, true) +
+                ',' + prefs.getBoolean(Config.KEY_DISABLE_METERING, true) +
+                ',' + prefs.getBoolean(Config.KEY_DISABLE_EXPOSURE, true);
+    }
+
     public Point getCameraResolution() {
         return cameraResolution;
     }
+
+    /**
+     * @return clockwise rotation, in degrees, which turns a preview frame into display orientation
+     */
+    public int getCWNeededRotation() {
+        return cwNeededRotation;
+    }
 }
\ No newline at end of file
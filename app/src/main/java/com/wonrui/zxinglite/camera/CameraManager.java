@@ -1,19 +1,26 @@
 package com.wonrui.zxinglite.camera;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.Camera;
+import android.os.AsyncTask;
 import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
 import com.wonrui.zxinglite.camera.open.OpenCamera;
 import com.wonrui.zxinglite.camera.open.OpenCameraInterface;
+import com.wonrui.zxinglite.preferences.Config;
 import com.wonrui.zxinglite.utils.AutoFocusManager;
-import com.google.zxing.PlanarYUVLuminanceSource;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This object wraps the Camera service object and expects to be the only one talking to it. The
@@ -23,7 +30,7 @@ import java.io.IOException;
  * 该类封装了相机的所有服务并且是该app中唯一与相机打交道的类
  */
 @SuppressWarnings("deprecation") // camera APIs
-public class CameraManager {
+public class CameraManager implements FrameSource {
     private static final String TAG = CameraManager.class.getSimpleName();
 
     private static final int MIN_FRAME_WIDTH = 240;
@@ -31,6 +38,21 @@ public class CameraManager {
     private static final int MAX_FRAME_WIDTH = 1200; // = 5/8 * 1920
     private static final int MAX_FRAME_HEIGHT = 675; // = 5/8 * 1080
 
+    /**
+     * Opens cameras one at a time, so that a camera released by a cancelled open is free again
+     * before the next one opens it. Its thread has no looper, so camera callbacks still arrive on
+     * the main thread.
+     */
+    private static final Executor OPEN_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CameraOpen");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final Context context;
     private final CameraConfigurationManager configManager;
     private Rect framingRect;
@@ -43,11 +65,14 @@ public class CameraManager {
     private int requestedFramingRectWidth;
     private int requestedFramingRectHeight;
     /**
-     * Preview frames are delivered here, which we pass on to the registered handler. Make sure to
-     * clear the handler so it will only receive one message.
+     * Preview frames are delivered here, which we pass on to the handlers which requested them, one
+     * frame per request. Frames nobody asked for go straight back to the camera's buffer queue.
      */
     private final PreviewCallback previewCallback;
-
+    /**
+     * Opening the camera in the background, or null
+     */
+    private OpenTask openTask;
 
     public CameraManager(Context context) {
         this.context = context;
@@ -96,8 +121,8 @@ public class CameraManager {
     }
 
     /**
-     * Like {@link #getFramingRect} but coordinates are in terms of the preview frame,
-     * not UI / screen.
+     * Like {@link #getFramingRect} but coordinates are in terms of the preview frame rotated into
+     * display orientation, not UI / screen.
      *
      * @return {@link Rect} expressing barcode scan area in terms of the preview size
      */
@@ -114,10 +139,15 @@ public class CameraManager {
                 // Called early, before init even finished
                 return null;
             }
-            rect.left = rect.left * cameraResolution.y / screenResolution.x;
-            rect.right = rect.right * cameraResolution.y / screenResolution.x;
-            rect.top = rect.top * cameraResolution.x / screenResolution.y;
-            rect.bottom = rect.bottom * cameraResolution.x / screenResolution.y;
+            // Preview frames are rotated into display orientation before decoding
+            int rotation = configManager.getCWNeededRotation();
+            boolean sideways = rotation == 90 || rotation == 270;
+            int previewWidth = sideways ? cameraResolution.y : cameraResolution.x;
+            int previewHeight = sideways ? cameraResolution.x : cameraResolution.y;
+            rect.left = rect.left * previewWidth / screenResolution.x;
+            rect.right = rect.right * previewWidth / screenResolution.x;
+            rect.top = rect.top * previewHeight / screenResolution.y;
+            rect.bottom = rect.bottom * previewHeight / screenResolution.y;
 
             framingRectInPreview = rect;
         }
@@ -151,6 +181,47 @@ public class CameraManager {
         return camera != null;
     }
 
+    /**
+     * @return true while the camera is being opened by {@link #openDriverAsync}
+     */
+    public synchronized boolean isOpening() {
+        return openTask != null;
+    }
+
+    /**
+     * Receives the outcome of {@link #openDriverAsync}, on the main thread.
+     */
+    public interface OpenCallback {
+        /**
+         * The camera is open and configured, and the preview can start.
+         */
+        void onCameraOpened();
+
+        void onCameraOpenFailed(Exception e);
+    }
+
+    /**
+     * Like {@link #openDriver(SurfaceHolder)}, but opens and configures the camera on a
+     * background thread, which takes hundreds of milliseconds on some devices. The camera only
+     * becomes visible to the other methods once it is ready. Cancelled by {@link #closeDriver()}.
+     *
+     * @param holder   The surface object which the camera will draw preview frames into.
+     * @param callback Told on the main thread once the camera is ready or failed to open, unless
+     *                 cancelled first.
+     */
+    public synchronized void openDriverAsync(SurfaceHolder holder, OpenCallback callback) {
+        cancelOpen();
+        openTask = new OpenTask(holder, callback);
+        openTask.executeOnExecutor(OPEN_EXECUTOR);
+    }
+
+    private synchronized void cancelOpen() {
+        if (openTask != null) {
+            openTask.cancel(false);
+            openTask = null;
+        }
+    }
+
     /**
      * Opens the camera driver and initializes the hardware parameters.
      *
@@ -160,23 +231,46 @@ public class CameraManager {
     public synchronized void openDriver(SurfaceHolder holder) throws IOException {
         OpenCamera theCamera = camera;
         if (theCamera == null) {
-            theCamera = OpenCameraInterface.open(requestedCameraId);
-            if (theCamera == null) {
-                throw new IOException("Camera.open() failed to return object from driver");
-            }
+            theCamera = openCamera();
             camera = theCamera;
         }
-
         if (!initialized) {
-            initialized = true;
             configManager.initFromCameraParameters(theCamera);
-            if (requestedFramingRectWidth > 0 && requestedFramingRectHeight > 0) {
-                setManualFramingRect(requestedFramingRectWidth, requestedFramingRectHeight);
-                requestedFramingRectWidth = 0;
-                requestedFramingRectHeight = 0;
-            }
+            onInitialized();
         }
+        configure(theCamera, holder);
+    }
+
+    private OpenCamera openCamera() throws IOException {
+        OpenCamera theCamera = OpenCameraInterface.open(requestedCameraId);
+        if (theCamera == null) {
+            throw new IOException("Camera.open() failed to return object from driver");
+        }
+        return theCamera;
+    }
+
+    private synchronized void onInitialized() {
+        initialized = true;
+        if (requestedFramingRectWidth > 0 && requestedFramingRectHeight > 0) {
+            setManualFramingRect(requestedFramingRectWidth, requestedFramingRectHeight);
+            requestedFramingRectWidth = 0;
+            requestedFramingRectHeight = 0;
+        }
+    }
+
+    /**
+     * Sets the cached parameters, or else the desired ones, falling back to safe-mode ones, and
+     * the preview surface.
+     */
+    private void configure(OpenCamera theCamera, SurfaceHolder holder) throws IOException {
+        Camera cameraObject = theCamera.getCamera();
+        if (!configManager.setCachedCameraParameters(theCamera)) {
+            setDesiredCameraParameters(theCamera);
+        }
+        cameraObject.setPreviewDisplay(holder);
+    }
 
+    private void setDesiredCameraParameters(OpenCamera theCamera) {
         Camera cameraObject = theCamera.getCamera();
         Camera.Parameters parameters = cameraObject.getParameters();
         String parametersFlattened = parameters == null ? null : parameters.flatten(); // Save these, temporarily
@@ -199,7 +293,6 @@ public class CameraManager {
                 }
             }
         }
-        cameraObject.setPreviewDisplay(holder);
     }
 
     /**
@@ -230,11 +323,17 @@ public class CameraManager {
     }
 
     /**
-     * Asks the camera hardware to begin drawing preview frames to the screen.
+     * Asks the camera hardware to begin drawing preview frames to the screen. Unless disabled in
+     * the preferences, frames keep being captured while earlier ones are decoded, and the newest
+     * one is handed to the next request.
      */
+    @Override
     public synchronized void startPreview() {
         OpenCamera theCamera = camera;
         if (theCamera != null && !previewing) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            previewCallback.setPipelined(prefs.getBoolean(Config.KEY_PIPELINED_DECODE, true));
+            previewCallback.attach(theCamera.getCamera());
             theCamera.getCamera().startPreview();
             previewing = true;
             autoFocusManager = new AutoFocusManager(context, theCamera.getCamera());
@@ -242,24 +341,39 @@ public class CameraManager {
     }
 
     /**
-     * A single preview frame will be returned to the handler supplied. The data will arrive as byte[]
-     * in the message.obj field, with width and height encoded as message.arg1 and message.arg2,
-     * respectively.
+     * Sets how many preview buffers are cycled through the camera. Each concurrent decoder holds
+     * one while decoding, so this should exceed the number of decoders. Takes effect on the next
+     * {@link #startPreview()}.
+     *
+     * @param bufferCount The number of preview buffers to allocate.
+     */
+    @Override
+    public synchronized void setPreviewBufferCount(int bufferCount) {
+        previewCallback.setBufferCount(bufferCount);
+    }
+
+    /**
+     * A single preview frame will be returned to the handler supplied. The frame will arrive as a
+     * {@link PreviewFrame} in the message.obj field, and the receiver must {@link PreviewFrame#release()}
+     * it once done so the buffer can be reused by the camera. Several requests may be outstanding,
+     * they are served in order.
      *
      * @param handler The handler to send the message to.
      * @param message The what field of the message to be sent.
      */
+    @Override
     public synchronized void requestPreviewFrame(Handler handler, int message) {
         OpenCamera theCamera = camera;
         if (theCamera != null && previewing) {
-            previewCallback.setHandler(handler, message);
-            theCamera.getCamera().setOneShotPreviewCallback(previewCallback);
+            // The buffered callback stays registered, so there is nothing to re-arm
+            previewCallback.addRequest(handler, message);
         }
     }
 
     /**
      * Tells the camera to stop drawing preview frames.
      */
+    @Override
     public synchronized void stopPreview() {
         if (autoFocusManager != null) {
             autoFocusManager.stop();
@@ -267,41 +381,144 @@ public class CameraManager {
         }
         if (camera != null && previewing) {
             camera.getCamera().stopPreview();
-            previewCallback.setHandler(null, 0);
+            previewCallback.clearRequests();
+            previewCallback.detach();
             previewing = false;
         }
     }
 
     /**
-     * Closes the camera driver if still in use.
+     * Closes the camera driver if still in use, or cancels opening it.
      */
     public synchronized void closeDriver() {
+        cancelOpen();
         if (camera != null) {
+            // Frames still out with a decoder must not be queued into a released camera
+            previewCallback.detach();
             camera.getCamera().release();
             camera = null;
             // Make sure to clear these each time we close the camera, so that any scanning rect
             // requested by intent is forgotten.
             framingRect = null;
             framingRectInPreview = null;
+            // The manager outlives the screen, which may come back in another size
+            initialized = false;
+        }
+    }
+
+    /**
+     * Starts a recording of preview frames with the current preview size, rotation and framing
+     * rect, for replaying them through {@link RecordedFrameSource}. The caller writes the frames
+     * and closes the recorder.
+     *
+     * @param file the recording to create, replacing any existing file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized FrameRecorder newFrameRecorder(File file) throws IOException {
+        Rect rect = getFramingRectInPreview();
+        Point cameraResolution = configManager.getCameraResolution();
+        if (camera == null || rect == null) {
+            throw new IllegalStateException("Camera not open");
+        }
+        return new FrameRecorder(file, cameraResolution.x, cameraResolution.y,
+                configManager.getCWNeededRotation(), rect);
+    }
+
+    /**
+     * Points the open camera at another surface, as when a new scan screen takes over a camera
+     * kept open by {@link CameraSession}. The preview must be stopped.
+     *
+     * @param holder The surface object which the camera will draw preview frames into.
+     */
+    public synchronized void setPreviewDisplay(SurfaceHolder holder) throws IOException {
+        if (camera != null) {
+            camera.getCamera().setPreviewDisplay(holder);
+        }
+    }
+
+    /**
+     * Opens and configures the camera without holding the manager's lock, so that the UI thread
+     * can keep drawing meanwhile, then hands it over. A camera opened after the task was cancelled
+     * is released again right away.
+     */
+    private final class OpenTask extends AsyncTask<Object, Object, Exception> {
+        private final SurfaceHolder holder;
+        private final OpenCallback callback;
+
+        OpenTask(SurfaceHolder holder, OpenCallback callback) {
+            this.holder = holder;
+            this.callback = callback;
+        }
+
+        @Override
+        protected Exception doInBackground(Object... args) {
+            boolean wasInitialized;
+            synchronized (CameraManager.this) {
+                wasInitialized = initialized;
+            }
+            OpenCamera theCamera = null;
+            try {
+                theCamera = openCamera();
+                if (!wasInitialized) {
+                    configManager.initFromCameraParameters(theCamera);
+                }
+                configure(theCamera, holder);
+            } catch (IOException | RuntimeException e) {
+                // RuntimeExceptions like "Fail to connect to camera service" have been seen
+                if (theCamera != null) {
+                    theCamera.getCamera().release();
+                }
+                return e;
+            }
+            synchronized (CameraManager.this) {
+                if (isCancelled() || camera != null) {
+                    theCamera.getCamera().release();
+                    return null;
+                }
+                camera = theCamera;
+                if (!initialized) {
+                    onInitialized();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Exception e) {
+            synchronized (CameraManager.this) {
+                if (openTask == this) {
+                    openTask = null;
+                }
+            }
+            if (e == null) {
+                callback.onCameraOpened();
+            } else {
+                callback.onCameraOpenFailed(e);
+            }
         }
     }
 
     /**
      * A factory method to build the appropriate LuminanceSource object based on the format
      * of the preview buffers, as described by Camera.Parameters.
+     * <p>
+     * The preview frame is delivered in sensor orientation while the framing rect is expressed in
+     * display orientation. The returned source maps the framing rect back onto the sensor data
+     * using the camera orientation, without copying or rotating the frame.
      *
-     * @param data   A preview frame.
-     * @param width  The width of the image.
-     * @param height The height of the image.
-     * @return A PlanarYUVLuminanceSource instance.
+     * @param data   A preview frame, in sensor orientation.
+     * @param width  The width of the preview frame.
+     * @param height The height of the preview frame.
+     * @return A RotatedYUVLuminanceSource instance.
      */
-    public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
+    @Override
+    public RotatedYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
         Rect rect = getFramingRectInPreview();
         if (rect == null) {
             return null;
         }
         // Go ahead and assume it's YUV rather than die.
-        return new PlanarYUVLuminanceSource(data, width, height, rect.left, rect.top,
-                rect.width(), rect.height(), false);
+        return new RotatedYUVLuminanceSource(data, width, height, configManager.getCWNeededRotation(),
+                rect.left, rect.top, rect.width(), rect.height());
     }
 }
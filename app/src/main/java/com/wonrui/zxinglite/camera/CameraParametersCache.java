@@ -0,0 +1,93 @@
+package com.wonrui.zxinglite.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Point;
+import android.os.Build;
+
+/**
+ * Remembers, per camera, the parameters the driver last accepted and the preview size they
+ * select, so that a later start can apply them in one go instead of querying the driver and
+ * deriving them again.
+ * <p>
+ * An entry only holds for the build it was made on and for the same settings: it is stale once
+ * {@link Build#FINGERPRINT} changes, as on an OS update which may bring a new camera driver, or
+ * once the signature of the settings it was derived from differs.
+ * <p>
+ * 按摄像头缓存驱动已接受的参数，系统更新或相关设置变化后失效
+ */
+final class CameraParametersCache {
+    private static final String PREFERENCES_NAME = "camera_parameters";
+    private static final String KEY_VERSION = ".version";
+    private static final String KEY_PREVIEW_SIZE = ".preview_size";
+    private static final String KEY_PARAMETERS = ".parameters";
+
+    private final SharedPreferences preferences;
+
+    CameraParametersCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Parameters as flattened by the driver, and the preview size they select
+     */
+    static final class Entry {
+        final Point previewSize;
+        final String parameters;
+
+        Entry(Point previewSize, String parameters) {
+            this.previewSize = previewSize;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * @param cameraId  the index of the camera
+     * @param signature the settings the parameters are derived from
+     * @return the entry of the camera, or null if there is none or it is stale
+     */
+    Entry load(int cameraId, String signature) {
+        String prefix = prefix(cameraId);
+        if (!version(signature).equals(preferences.getString(prefix + KEY_VERSION, null))) {
+            return null;
+        }
+        String previewSize = preferences.getString(prefix + KEY_PREVIEW_SIZE, null);
+        String parameters = preferences.getString(prefix + KEY_PARAMETERS, null);
+        if (previewSize == null || parameters == null) {
+            return null;
+        }
+        int x = previewSize.indexOf('x');
+        try {
+            return new Entry(new Point(Integer.parseInt(previewSize.substring(0, x)),
+                    Integer.parseInt(previewSize.substring(x + 1))), parameters);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    void save(int cameraId, String signature, Entry entry) {
+        String prefix = prefix(cameraId);
+        preferences.edit()
+                .putString(prefix + KEY_VERSION, version(signature))
+                .putString(prefix + KEY_PREVIEW_SIZE, entry.previewSize.x + "x" + entry.previewSize.y)
+                .putString(prefix + KEY_PARAMETERS, entry.parameters)
+                .apply();
+    }
+
+    void remove(int cameraId) {
+        String prefix = prefix(cameraId);
+        preferences.edit()
+                .remove(prefix + KEY_VERSION)
+                .remove(prefix + KEY_PREVIEW_SIZE)
+                .remove(prefix + KEY_PARAMETERS)
+                .apply();
+    }
+
+    private static String prefix(int cameraId) {
+        return "camera" + cameraId;
+    }
+
+    private static String version(String signature) {
+        return Build.FINGERPRINT + '|' + signature;
+    }
+}
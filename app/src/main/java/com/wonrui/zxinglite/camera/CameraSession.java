@@ -0,0 +1,134 @@
+package com.wonrui.zxinglite.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.wonrui.zxinglite.preferences.Config;
+import com.wonrui.zxinglite.utils.FrontLightMode;
+
+/**
+ * Shares one {@link CameraManager} among the scan screens of the process, and keeps its camera
+ * open for a grace period after the last of them let go of it, so that scanning again soon after
+ * does not pay for opening and configuring the camera a second time.
+ * <p>
+ * Screens {@link #acquire()} the manager when they resume and {@link #release()} it when they
+ * pause. Once no screen holds it, the camera is released after
+ * {@link Config#KEY_CAMERA_KEEP_ALIVE} milliseconds, or right away when the system trims memory,
+ * which includes the app going to the background, where other apps may want the camera.
+ * <p>
+ * Main thread only.
+ * <p>
+ * 进程内共享的相机会话：最后一个扫描界面离开后相机仍保持打开一段时间，连续扫描时免去重新打开相机
+ */
+public final class CameraSession implements ComponentCallbacks2 {
+    private static final String TAG = CameraSession.class.getSimpleName();
+
+    private static final long DEFAULT_KEEP_ALIVE_MS = 10 * 1000L;
+
+    private static CameraSession instance;
+
+    private final Context context;
+    private final CameraManager cameraManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable closeTask = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Keep-alive expired, closing camera");
+            cameraManager.closeDriver();
+        }
+    };
+    private int clients;
+
+    private CameraSession(Context context) {
+        this.context = context;
+        cameraManager = new CameraManager(context);
+    }
+
+    public static CameraSession getInstance(Context context) {
+        if (instance == null) {
+            instance = new CameraSession(context.getApplicationContext());
+            instance.context.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the shared manager, whose camera may still be open from the last scan
+     */
+    public CameraManager acquire() {
+        clients++;
+        handler.removeCallbacks(closeTask);
+        if (clients == 1 && cameraManager.isOpen()) {
+            // The torch was turned off while nobody held the camera
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            cameraManager.setTorch(FrontLightMode.readPref(prefs) == FrontLightMode.ON);
+        }
+        return cameraManager;
+    }
+
+    /**
+     * Lets go of the manager. The caller must have stopped the preview.
+     */
+    public void release() {
+        if (clients <= 0) {
+            throw new IllegalStateException("Released more often than acquired");
+        }
+        clients--;
+        if (clients > 0) {
+            return;
+        }
+        long keepAlive = readKeepAlive();
+        if (keepAlive <= 0L || cameraManager.isOpening()) {
+            // A camera still opening would report to the screen just gone
+            cameraManager.closeDriver();
+            return;
+        }
+        if (cameraManager.isOpen()) {
+            cameraManager.setTorch(false);
+            handler.postDelayed(closeTask, keepAlive);
+        }
+    }
+
+    private long readKeepAlive() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String keepAlive = prefs.getString(Config.KEY_CAMERA_KEEP_ALIVE, null);
+        if (keepAlive == null) {
+            return DEFAULT_KEEP_ALIVE_MS;
+        }
+        try {
+            return Long.parseLong(keepAlive.trim());
+        } catch (NumberFormatException nfe) {
+            Log.w(TAG, "Bad camera keep-alive: " + keepAlive);
+            return DEFAULT_KEEP_ALIVE_MS;
+        }
+    }
+
+    private void closeIfUnused() {
+        if (clients == 0 && (cameraManager.isOpen() || cameraManager.isOpening())) {
+            handler.removeCallbacks(closeTask);
+            cameraManager.closeDriver();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        closeIfUnused();
+    }
+
+    @Override
+    public void onLowMemory() {
+        closeIfUnused();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // The camera was configured for the old screen size and rotation
+        closeIfUnused();
+    }
+}
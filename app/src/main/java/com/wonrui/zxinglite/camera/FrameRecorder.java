@@ -0,0 +1,81 @@
+package com.wonrui.zxinglite.camera;
+
+import android.graphics.Rect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes NV21 preview frames to a recording for {@link RecordedFrameSource}. The recording starts
+ * with a header of big-endian ints: magic, version, frame width and height, the clockwise rotation
+ * into display orientation, the framing rect in display orientation (left, top, right, bottom)
+ * and the frame count. The frames follow back to back.
+ * <p>
+ * 将NV21预览帧连同分辨率、旋转角度和扫描框写入录制文件
+ */
+public final class FrameRecorder implements Closeable {
+    static final int MAGIC = 0x5A584652; // "ZXFR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 10 * 4;
+    private static final int FRAME_COUNT_OFFSET = HEADER_SIZE - 4;
+
+    private final RandomAccessFile out;
+    private final int frameSize;
+    private int frameCount;
+
+    /**
+     * @param file        the recording to create, replacing any existing file
+     * @param width       the frame width, in sensor orientation
+     * @param height      the frame height, in sensor orientation
+     * @param rotation    the clockwise rotation from sensor into display orientation
+     * @param framingRect the area decoded, in display orientation, as from
+     *                    {@link CameraManager#getFramingRectInPreview()}
+     */
+    public FrameRecorder(File file, int width, int height, int rotation, Rect framingRect)
+            throws IOException {
+        out = new RandomAccessFile(file, "rw");
+        out.setLength(0L);
+        frameSize = frameSize(width, height);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(rotation);
+        out.writeInt(framingRect.left);
+        out.writeInt(framingRect.top);
+        out.writeInt(framingRect.right);
+        out.writeInt(framingRect.bottom);
+        out.writeInt(0);
+    }
+
+    static int frameSize(int width, int height) {
+        // NV21: a full resolution Y plane and interleaved VU at a quarter resolution
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Appends a frame. The frame count in the header is kept up to date, so a recording cut short
+     * by a crash still replays.
+     */
+    public synchronized void write(byte[] frame) throws IOException {
+        if (frame.length < frameSize) {
+            throw new IllegalArgumentException("Frame too short: " + frame.length);
+        }
+        out.seek(HEADER_SIZE + (long) frameCount * frameSize);
+        out.write(frame, 0, frameSize);
+        frameCount++;
+        out.seek(FRAME_COUNT_OFFSET);
+        out.writeInt(frameCount);
+    }
+
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
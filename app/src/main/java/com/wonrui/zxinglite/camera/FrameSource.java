@@ -0,0 +1,42 @@
+package com.wonrui.zxinglite.camera;
+
+import android.os.Handler;
+
+/**
+ * Where the preview frames decoded by the capture pipeline come from: the camera, see
+ * {@link CameraManager}, or a recording, see {@link RecordedFrameSource}.
+ * <p>
+ * 预览帧的来源，可以是相机或录制的帧文件
+ */
+public interface FrameSource {
+    /**
+     * Sets how many frame buffers are cycled. Each concurrent decoder holds one while decoding, so
+     * this should exceed the number of decoders. Takes effect on the next {@link #startPreview()}.
+     *
+     * @param bufferCount The number of frame buffers to allocate.
+     */
+    void setPreviewBufferCount(int bufferCount);
+
+    void startPreview();
+
+    /**
+     * A single frame will be returned to the handler supplied, as a {@link PreviewFrame} in the
+     * message.obj field, which the receiver must {@link PreviewFrame#release()} once done. Several
+     * requests may be outstanding, they are served in order.
+     *
+     * @param handler The handler to send the message to.
+     * @param message The what field of the message to be sent.
+     */
+    void requestPreviewFrame(Handler handler, int message);
+
+    void stopPreview();
+
+    /**
+     * @param data   A frame, as delivered.
+     * @param width  The width of the frame.
+     * @param height The height of the frame.
+     * @return a source over the framing rect of the frame, rotated into display orientation, or
+     * null if the framing rect is not known yet
+     */
+    RotatedYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height);
+}
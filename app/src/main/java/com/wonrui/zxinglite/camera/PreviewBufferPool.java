@@ -0,0 +1,92 @@
+package com.wonrui.zxinglite.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * A fixed set of preview buffers registered with {@link Camera#addCallbackBuffer(byte[])}, so that
+ * preview frames are delivered into recycled memory instead of a fresh array per frame.
+ * <p>
+ * 固定数量的预览缓冲区，循环交给相机使用，避免每帧分配新的byte[]
+ */
+@SuppressWarnings("deprecation") // camera APIs
+final class PreviewBufferPool {
+    private final PreviewFrame[] frames;
+    private final int width;
+    private final int height;
+    private Camera camera;
+
+    PreviewBufferPool(int count, int width, int height) {
+        this.width = width;
+        this.height = height;
+        int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        frames = new PreviewFrame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new PreviewFrame(this, width, height, bufferSize);
+        }
+    }
+
+    boolean hasSize(int width, int height, int count) {
+        return this.width == width && this.height == height && frames.length == count;
+    }
+
+    /**
+     * Queues every buffer which is not out with a receiver into the camera.
+     */
+    synchronized void attach(Camera camera, Camera.PreviewCallback callback) {
+        this.camera = camera;
+        for (PreviewFrame frame : frames) {
+            if (!frame.delivered) {
+                camera.addCallbackBuffer(frame.getData());
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(callback);
+    }
+
+    /**
+     * Clears the camera's buffer queue. Buffers still out with a receiver are kept back until they
+     * are released and the pool is attached again.
+     */
+    synchronized void detach() {
+        if (camera != null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            camera = null;
+        }
+    }
+
+    /**
+     * @return the pooled frame wrapping the buffer, marked as delivered, or null if the buffer
+     * is not one of ours
+     */
+    synchronized PreviewFrame deliver(byte[] data) {
+        for (PreviewFrame frame : frames) {
+            if (frame.getData() == data) {
+                frame.delivered = true;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * For sources without a camera, which fill the buffers themselves.
+     *
+     * @return a frame which is not out with a receiver, marked as delivered, or null if all are
+     */
+    synchronized PreviewFrame acquire() {
+        for (PreviewFrame frame : frames) {
+            if (!frame.delivered) {
+                frame.delivered = true;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    synchronized void recycle(PreviewFrame frame) {
+        frame.delivered = false;
+        if (camera != null) {
+            camera.addCallbackBuffer(frame.getData());
+        }
+    }
+}
@@ -3,40 +3,190 @@ package com.wonrui.zxinglite.camera;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * 该类的作用是在预览界面加载好后向ui线程发消息
+ * <p>
+ * Frames are delivered into the buffers of a {@link PreviewBufferPool}. Each frame is passed on
+ * as a {@link PreviewFrame} to the oldest pending request, so several decoders can each be
+ * waiting for one. Frames nobody asked for go straight back to the camera, unless pipelining is
+ * on: then the newest one is held back and handed out as soon as the next request comes in, so
+ * that capture overlaps decoding. A newer frame always replaces the held one.
  */
 @SuppressWarnings("deprecation") // camera APIs
 public class PreviewCallback implements Camera.PreviewCallback {
     private static final String TAG = PreviewCallback.class.getSimpleName();
 
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+    /**
+     * A held frame older than this is not worth decoding any more
+     */
+    private static final long MAX_LATEST_FRAME_AGE_MS = 200L;
+
     private final CameraConfigurationManager configManager;
-    private Handler previewHandler;
-    private int previewMessage;
+    private PreviewBufferPool bufferPool;
+    private int bufferCount = DEFAULT_BUFFER_COUNT;
+    // Pending frame requests, kept as a ring so that queueing one does not allocate
+    private Handler[] pendingHandlers = new Handler[DEFAULT_BUFFER_COUNT];
+    private int[] pendingMessages = new int[DEFAULT_BUFFER_COUNT];
+    private int pendingHead;
+    private int pendingCount;
+    private boolean pipelined;
+    private PreviewFrame latestFrame;
+    private long latestFrameTime;
+    /**
+     * Frames recycled without being handed out, since the last one that was
+     */
+    private int droppedFrames;
 
+    /**
+     * @param configManager gives the preview size on {@link #attach(Camera)}; may be null if frames
+     *                      only come in through {@link #onFrame(PreviewFrame)}
+     */
     public PreviewCallback(CameraConfigurationManager configManager) {
         this.configManager = configManager;
     }
 
-    public void setHandler(Handler previewHandler, int previewMessage) {
-        this.previewHandler = previewHandler;
-        this.previewMessage = previewMessage;
+    /**
+     * Queues a request for the next preview frame. With pipelining on, a frame captured since the
+     * last request is handed out right away instead.
+     */
+    public synchronized void addRequest(Handler previewHandler, int previewMessage) {
+        PreviewFrame frame = takeLatestFrame();
+        if (frame != null) {
+            handOut(previewHandler, previewMessage, frame);
+            return;
+        }
+        if (pendingCount == pendingHandlers.length) {
+            growRequests();
+        }
+        int tail = (pendingHead + pendingCount) % pendingHandlers.length;
+        pendingHandlers[tail] = previewHandler;
+        pendingMessages[tail] = previewMessage;
+        pendingCount++;
     }
 
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
+    public synchronized void clearRequests() {
+        for (int i = 0; i < pendingHandlers.length; i++) {
+            pendingHandlers[i] = null;
+        }
+        pendingHead = 0;
+        pendingCount = 0;
+        dropLatestFrame();
+    }
+
+    /**
+     * @param pipelined true to hold back the newest unrequested frame for the next request
+     */
+    public synchronized void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        if (!pipelined) {
+            dropLatestFrame();
+        }
+    }
+
+    private PreviewFrame takeLatestFrame() {
+        PreviewFrame frame = latestFrame;
+        if (frame == null) {
+            return null;
+        }
+        latestFrame = null;
+        if (SystemClock.uptimeMillis() - latestFrameTime > MAX_LATEST_FRAME_AGE_MS) {
+            frame.release();
+            droppedFrames++;
+            return null;
+        }
+        return frame;
+    }
+
+    private void dropLatestFrame() {
+        if (latestFrame != null) {
+            latestFrame.release();
+            latestFrame = null;
+            droppedFrames++;
+        }
+    }
+
+    private void handOut(Handler previewHandler, int previewMessage, PreviewFrame frame) {
+        frame.setDroppedBefore(droppedFrames);
+        droppedFrames = 0;
+        previewHandler.obtainMessage(previewMessage, frame).sendToTarget();
+    }
+
+    private void growRequests() {
+        int capacity = pendingHandlers.length;
+        Handler[] handlers = new Handler[capacity * 2];
+        int[] messages = new int[capacity * 2];
+        for (int i = 0; i < pendingCount; i++) {
+            handlers[i] = pendingHandlers[(pendingHead + i) % capacity];
+            messages[i] = pendingMessages[(pendingHead + i) % capacity];
+        }
+        pendingHandlers = handlers;
+        pendingMessages = messages;
+        pendingHead = 0;
+    }
+
+    /**
+     * @param bufferCount number of preview buffers to allocate on the next {@link #attach(Camera)}
+     */
+    synchronized void setBufferCount(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Registers the preview buffers with the camera, allocating them on first use.
+     */
+    synchronized void attach(Camera camera) {
         Point cameraResolution = configManager.getCameraResolution();
-        Handler thePreviewHandler = previewHandler;
-        if (cameraResolution != null && thePreviewHandler != null) {
-            Message message = thePreviewHandler.obtainMessage(previewMessage, cameraResolution.x,
-                    cameraResolution.y, data);
-            message.sendToTarget();
-            previewHandler = null;
+        if (bufferPool == null || !bufferPool.hasSize(cameraResolution.x, cameraResolution.y, bufferCount)) {
+            if (bufferPool != null) {
+                bufferPool.detach();
+            }
+            bufferPool = new PreviewBufferPool(bufferCount, cameraResolution.x, cameraResolution.y);
+        }
+        bufferPool.attach(camera, this);
+    }
+
+    synchronized void detach() {
+        if (bufferPool != null) {
+            bufferPool.detach();
+        }
+        dropLatestFrame();
+    }
+
+    @Override
+    public synchronized void onPreviewFrame(byte[] data, Camera camera) {
+        PreviewFrame frame = bufferPool == null ? null : bufferPool.deliver(data);
+        if (frame == null) {
+            Log.d(TAG, "Got preview callback for an unknown buffer");
+            return;
+        }
+        onFrame(frame);
+    }
+
+    /**
+     * Passes a newly filled frame on, to a pending request or to be held back as the latest frame.
+     */
+    synchronized void onFrame(PreviewFrame frame) {
+        frame.setArrival(System.nanoTime());
+        if (pendingCount > 0) {
+            Handler thePreviewHandler = pendingHandlers[pendingHead];
+            int thePreviewMessage = pendingMessages[pendingHead];
+            pendingHandlers[pendingHead] = null;
+            pendingHead = (pendingHead + 1) % pendingHandlers.length;
+            pendingCount--;
+            handOut(thePreviewHandler, thePreviewMessage, frame);
+        } else if (pipelined) {
+            // Latest frame wins: keep this one for the next request and recycle the older one
+            dropLatestFrame();
+            latestFrame = frame;
+            latestFrameTime = SystemClock.uptimeMillis();
         } else {
-            Log.d(TAG, "Got preview callback, but no handler or resolution available");
+            // Nobody is waiting for this one, hand the buffer straight back
+            frame.release();
+            droppedFrames++;
         }
     }
 }
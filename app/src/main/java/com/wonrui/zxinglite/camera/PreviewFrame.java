@@ -0,0 +1,73 @@
+package com.wonrui.zxinglite.camera;
+
+/**
+ * One preallocated preview buffer of a {@link PreviewBufferPool}. A frame handed out by
+ * {@link PreviewCallback} belongs to its receiver until {@link #release()} gives the buffer back
+ * to the camera.
+ * <p>
+ * 预分配的预览帧缓冲区，使用完毕后必须调用release()归还给相机
+ */
+public final class PreviewFrame {
+    private final PreviewBufferPool pool;
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    /**
+     * Guarded by the pool: true while the frame is out with a receiver rather than queued in the camera
+     */
+    boolean delivered;
+    private long arrivalNanos;
+    private int droppedBefore;
+
+    PreviewFrame(PreviewBufferPool pool, int width, int height, int bufferSize) {
+        this.pool = pool;
+        this.data = new byte[bufferSize];
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the YUV preview data, in sensor orientation
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the camera delivered the frame
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /**
+     * @return how many frames the camera delivered but nobody decoded, since the frame handed
+     * out before this one
+     */
+    public int getDroppedBefore() {
+        return droppedBefore;
+    }
+
+    void setArrival(long arrivalNanos) {
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    void setDroppedBefore(int droppedBefore) {
+        this.droppedBefore = droppedBefore;
+    }
+
+    /**
+     * Gives the buffer back to the camera. The data must not be touched afterwards.
+     */
+    public void release() {
+        pool.recycle(this);
+    }
+}
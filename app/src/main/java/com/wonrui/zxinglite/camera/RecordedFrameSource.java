@@ -0,0 +1,263 @@
+package com.wonrui.zxinglite.camera;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays recorded NV21 frames in place of the camera, to reproduce decode failures from the
+ * field and to load the decode pipeline deterministically, without camera hardware.
+ * <p>
+ * Frames come from a recording written by {@link FrameRecorder}, which also holds the frame size,
+ * camera rotation and framing rect, or from a directory of raw frame files named like
+ * {@code anything_640x480.nv21}, which are cropped to a centered 5/8 of the rotated frame. Both
+ * are memory-mapped rather than read up front.
+ * <p>
+ * With a frame rate, frames are delivered at that pace like a camera would, and a decoder which
+ * is busy misses them. Without one, each frame request gets the next frame straight away, so
+ * every frame is decoded, in order, as fast as the decoders go.
+ * <p>
+ * 用录制的NV21帧代替相机作为预览帧来源，用于复现识别失败和压力测试
+ */
+public final class RecordedFrameSource implements FrameSource {
+    private static final Pattern FRAME_NAME = Pattern.compile(".*_(\\d+)x(\\d+)\\.nv21");
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+    /**
+     * On demand, how soon to try again when every buffer is still out with a decoder
+     */
+    private static final long BUFFER_RETRY_MS = 1L;
+
+    private final ByteBuffer[] frames;
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final Rect framingRect;
+    /**
+     * Frames per second, or 0 on demand
+     */
+    private final int fps;
+    private final boolean loop;
+    private final PreviewCallback previewCallback = new PreviewCallback(null);
+    private PreviewBufferPool bufferPool;
+    private int bufferCount = DEFAULT_BUFFER_COUNT;
+    private HandlerThread playbackThread;
+    private Handler playbackHandler;
+    private boolean previewing;
+    private int nextFrame;
+    /**
+     * When paced playback started, and how many frames it has played since
+     */
+    private long playbackStartNanos;
+    private long playedFrames;
+
+    private final Runnable playFrame = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RecordedFrameSource.this) {
+                if (!previewing) {
+                    return;
+                }
+                deliverNextFrame();
+                if (fps > 0) {
+                    // Each frame is due relative to the start, so rounding to whole
+                    // milliseconds does not add up over the frames
+                    playedFrames++;
+                    long dueNanos = playbackStartNanos + playedFrames * 1000000000L / fps;
+                    playbackHandler.postAtTime(this, dueNanos / 1000000L);
+                }
+            }
+        }
+    };
+
+    private RecordedFrameSource(ByteBuffer[] frames,
+                                int width,
+                                int height,
+                                int rotation,
+                                Rect framingRect,
+                                int fps,
+                                boolean loop) {
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.framingRect = framingRect;
+        this.fps = Math.max(0, fps);
+        this.loop = loop;
+    }
+
+    /**
+     * @param file a recording written by {@link FrameRecorder}, or a directory of frame files
+     * @param fps  frames per second to deliver, or 0 to hand out the next frame on each request
+     * @param loop true to start over after the last frame
+     * @throws IOException if the recording cannot be read or is malformed
+     */
+    public static RecordedFrameSource open(File file, int fps, boolean loop) throws IOException {
+        if (file.isDirectory()) {
+            return openDirectory(file, fps, loop);
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, FrameRecorder.HEADER_SIZE);
+            if (header.getInt() != FrameRecorder.MAGIC) {
+                throw new IOException("Not a frame recording: " + file);
+            }
+            int version = header.getInt();
+            if (version != FrameRecorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + ": " + file);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int rotation = header.getInt();
+            Rect framingRect = new Rect(header.getInt(), header.getInt(), header.getInt(), header.getInt());
+            int frameCount = header.getInt();
+            int frameSize = FrameRecorder.frameSize(width, height);
+            if (FrameRecorder.HEADER_SIZE + (long) frameCount * frameSize > channel.size()) {
+                throw new IOException("Truncated recording: " + file);
+            }
+            ByteBuffer[] frames = new ByteBuffer[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                frames[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        FrameRecorder.HEADER_SIZE + (long) i * frameSize, frameSize);
+            }
+            return new RecordedFrameSource(frames, width, height, rotation, framingRect, fps, loop);
+        } finally {
+            // The mappings stay valid once the file is closed
+            in.close();
+        }
+    }
+
+    private static RecordedFrameSource openDirectory(File dir, int fps, boolean loop) throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return FRAME_NAME.matcher(file.getName()).matches();
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new IOException("No frame files in " + dir);
+        }
+        Arrays.sort(files);
+        int width = 0;
+        int height = 0;
+        ByteBuffer[] frames = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            Matcher matcher = FRAME_NAME.matcher(files[i].getName());
+            matcher.matches();
+            int frameWidth = Integer.parseInt(matcher.group(1));
+            int frameHeight = Integer.parseInt(matcher.group(2));
+            if (i == 0) {
+                width = frameWidth;
+                height = frameHeight;
+            } else if (frameWidth != width || frameHeight != height) {
+                throw new IOException("Frame size differs from " + width + "x" + height + ": " + files[i]);
+            }
+            RandomAccessFile in = new RandomAccessFile(files[i], "r");
+            try {
+                frames[i] = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L,
+                        FrameRecorder.frameSize(width, height));
+            } finally {
+                in.close();
+            }
+        }
+        // Raw frames carry no metadata: assume the usual portrait phone, and the default framing
+        int rotation = 90;
+        int cropWidth = 5 * height / 8;
+        int cropHeight = 5 * width / 8;
+        int left = (height - cropWidth) / 2;
+        int top = (width - cropHeight) / 2;
+        Rect framingRect = new Rect(left, top, left + cropWidth, top + cropHeight);
+        return new RecordedFrameSource(frames, width, height, rotation, framingRect, fps, loop);
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    @Override
+    public synchronized void setPreviewBufferCount(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    @Override
+    public synchronized void startPreview() {
+        if (previewing) {
+            return;
+        }
+        if (bufferPool == null || !bufferPool.hasSize(width, height, bufferCount)) {
+            bufferPool = new PreviewBufferPool(bufferCount, width, height);
+        }
+        // Paced playback drops frames like the camera does, on demand every frame is wanted
+        previewCallback.setPipelined(fps > 0);
+        playbackThread = new HandlerThread("FramePlayback");
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
+        previewing = true;
+        if (fps > 0) {
+            playbackStartNanos = SystemClock.uptimeMillis() * 1000000L;
+            playedFrames = 0L;
+            playbackHandler.post(playFrame);
+        }
+    }
+
+    @Override
+    public synchronized void requestPreviewFrame(Handler handler, int message) {
+        if (previewing) {
+            previewCallback.addRequest(handler, message);
+            if (fps == 0) {
+                playbackHandler.post(playFrame);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stopPreview() {
+        if (previewing) {
+            previewing = false;
+            playbackHandler.removeCallbacks(playFrame);
+            playbackThread.quit();
+            playbackThread = null;
+            playbackHandler = null;
+            previewCallback.clearRequests();
+        }
+    }
+
+    @Override
+    public RotatedYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
+        return new RotatedYUVLuminanceSource(data, width, height, rotation,
+                framingRect.left, framingRect.top, framingRect.width(), framingRect.height());
+    }
+
+    private void deliverNextFrame() {
+        if (nextFrame == frames.length) {
+            if (!loop) {
+                return;
+            }
+            nextFrame = 0;
+        }
+        PreviewFrame frame = bufferPool.acquire();
+        if (frame == null) {
+            if (fps == 0) {
+                // A request is waiting for this frame, so keep it until a buffer is free
+                playbackHandler.postDelayed(playFrame, BUFFER_RETRY_MS);
+            }
+            // Paced, a camera would skip this frame too
+            return;
+        }
+        ByteBuffer recorded = frames[nextFrame++].duplicate();
+        recorded.rewind();
+        recorded.get(frame.getData(), 0, recorded.remaining());
+        previewCallback.onFrame(frame);
+    }
+}
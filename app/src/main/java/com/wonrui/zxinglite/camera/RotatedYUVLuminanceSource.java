@@ -0,0 +1,236 @@
+package com.wonrui.zxinglite.camera;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * A {@link LuminanceSource} over the Y plane of a YUV preview frame in sensor orientation, which
+ * presents a clockwise-rotated crop of it. Rows and the matrix are served by index remapping over
+ * the original buffer, so no rotated copy of the frame is ever made.
+ * <p>
+ * 按相机方向旋转后的亮度源，直接在原始预览数据上做下标映射，不再复制旋转整帧数据
+ */
+public final class RotatedYUVLuminanceSource extends LuminanceSource {
+    private static final int THUMBNAIL_SCALE_FACTOR = 2;
+
+    private final byte[] yuvData;
+    /**
+     * Offset into {@link #yuvData} of the top left pixel of this source
+     */
+    private final int origin;
+    /**
+     * Offset step in {@link #yuvData} for one pixel to the right of this source
+     */
+    private final int stepX;
+    /**
+     * Offset step in {@link #yuvData} for one pixel down of this source
+     */
+    private final int stepY;
+
+    /**
+     * @param yuvData    The preview frame, in sensor orientation.
+     * @param dataWidth  The width of the preview frame.
+     * @param dataHeight The height of the preview frame.
+     * @param rotation   Clockwise rotation from the sensor to the wanted orientation: 0, 90, 180 or 270.
+     * @param left       The left of the crop, in rotated coordinates.
+     * @param top        The top of the crop, in rotated coordinates.
+     * @param width      The width of the crop, in rotated coordinates.
+     * @param height     The height of the crop, in rotated coordinates.
+     */
+    public RotatedYUVLuminanceSource(byte[] yuvData,
+                                     int dataWidth,
+                                     int dataHeight,
+                                     int rotation,
+                                     int left,
+                                     int top,
+                                     int width,
+                                     int height) {
+        super(width, height);
+
+        boolean sideways = rotation == 90 || rotation == 270;
+        int rotatedWidth = sideways ? dataHeight : dataWidth;
+        int rotatedHeight = sideways ? dataWidth : dataHeight;
+        if (left < 0 || top < 0 || left + width > rotatedWidth || top + height > rotatedHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+
+        // Rotated (x, y) is found at sensor offset origin + x * stepX + y * stepY
+        int origin;
+        switch (rotation) {
+            case 0:
+                origin = 0;
+                stepX = 1;
+                stepY = dataWidth;
+                break;
+            case 90:
+                origin = (dataHeight - 1) * dataWidth;
+                stepX = -dataWidth;
+                stepY = 1;
+                break;
+            case 180:
+                origin = dataHeight * dataWidth - 1;
+                stepX = -1;
+                stepY = -dataWidth;
+                break;
+            case 270:
+                origin = dataWidth - 1;
+                stepX = dataWidth;
+                stepY = -1;
+                break;
+            default:
+                throw new IllegalArgumentException("Bad rotation: " + rotation);
+        }
+        this.yuvData = yuvData;
+        this.origin = origin + left * stepX + top * stepY;
+    }
+
+    private RotatedYUVLuminanceSource(byte[] yuvData,
+                                      int origin,
+                                      int stepX,
+                                      int stepY,
+                                      int width,
+                                      int height) {
+        super(width, height);
+        this.yuvData = yuvData;
+        this.origin = origin;
+        this.stepX = stepX;
+        this.stepY = stepY;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        copyRow(y, row, 0);
+        return row;
+    }
+
+    /**
+     * @return the luminance of one pixel, for callers which only sample a few
+     */
+    public int getLuminance(int x, int y) {
+        return yuvData[origin + x * stepX + y * stepY] & 0xff;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        return getMatrix(null);
+    }
+
+    /**
+     * Like {@link #getMatrix()}, into an array which can be reused from frame to frame.
+     *
+     * @param matrix An optional preallocated array. If null or too small, it will be ignored.
+     * @return The luminance values, row by row, in an array at least width * height long
+     */
+    public byte[] getMatrix(byte[] matrix) {
+        int width = getWidth();
+        int height = getHeight();
+        if (matrix == null || matrix.length < width * height) {
+            matrix = new byte[width * height];
+        }
+        for (int y = 0; y < height; y++) {
+            copyRow(y, matrix, y * width);
+        }
+        return matrix;
+    }
+
+    private void copyRow(int y, byte[] dest, int destOffset) {
+        int width = getWidth();
+        int inputOffset = origin + y * stepY;
+        if (stepX == 1) {
+            System.arraycopy(yuvData, inputOffset, dest, destOffset, width);
+            return;
+        }
+        byte[] yuv = yuvData;
+        int step = stepX;
+        int end = destOffset + width;
+        for (int i = destOffset; i < end; i++) {
+            dest[i] = yuv[inputOffset];
+            inputOffset += step;
+        }
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || left + width > getWidth() || top + height > getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        return new RotatedYUVLuminanceSource(yuvData,
+                origin + left * stepX + top * stepY,
+                stepX,
+                stepY,
+                width,
+                height);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        // New (x, y) is old (width - 1 - y, x)
+        return new RotatedYUVLuminanceSource(yuvData,
+                origin + (getWidth() - 1) * stepX,
+                stepY,
+                -stepX,
+                getHeight(),
+                getWidth());
+    }
+
+    public int[] renderThumbnail() {
+        int[] pixels = new int[getThumbnailWidth() * getThumbnailHeight()];
+        renderThumbnail(pixels);
+        return pixels;
+    }
+
+    /**
+     * Like {@link #renderThumbnail()}, into an array which can be reused from frame to frame.
+     *
+     * @param pixels receives the ARGB pixels, at least as long as the thumbnail's area
+     */
+    public void renderThumbnail(int[] pixels) {
+        int width = getThumbnailWidth();
+        int height = getThumbnailHeight();
+        byte[] yuv = yuvData;
+        int stepX = this.stepX * THUMBNAIL_SCALE_FACTOR;
+        int stepY = this.stepY * THUMBNAIL_SCALE_FACTOR;
+        int rowOffset = origin;
+
+        for (int y = 0; y < height; y++) {
+            int outputOffset = y * width;
+            int inputOffset = rowOffset;
+            for (int x = 0; x < width; x++) {
+                int grey = yuv[inputOffset] & 0xff;
+                pixels[outputOffset + x] = 0xFF000000 | (grey * 0x00010101);
+                inputOffset += stepX;
+            }
+            rowOffset += stepY;
+        }
+    }
+
+    /**
+     * @return width of image from {@link #renderThumbnail()}
+     */
+    public int getThumbnailWidth() {
+        return getWidth() / THUMBNAIL_SCALE_FACTOR;
+    }
+
+    /**
+     * @return height of image from {@link #renderThumbnail()}
+     */
+    public int getThumbnailHeight() {
+        return getHeight() / THUMBNAIL_SCALE_FACTOR;
+    }
+}
@@ -19,6 +19,10 @@ public class OpenCamera {
         this.orientation = orientation;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
     public Camera getCamera() {
         return camera;
     }
@@ -0,0 +1,108 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Wraps a luminance source so that readers still working on it can be stopped: once
+ * {@link #abort()} is called, every further read throws {@link AbortedException}. The readers never
+ * check for interruption, but the 1D readers read row after row, and a 2D reader reads the matrix
+ * before doing anything else.
+ * <p>
+ * Crops and rotations of the source share its abort flag.
+ * <p>
+ * 可中止的亮度源：中止后再读取就抛出异常，用于停止已经落后的解码任务
+ */
+final class AbortableLuminanceSource extends LuminanceSource {
+    private final LuminanceSource delegate;
+    private final Flag flag;
+
+    AbortableLuminanceSource(LuminanceSource delegate) {
+        this(delegate, new Flag());
+    }
+
+    private AbortableLuminanceSource(LuminanceSource delegate, Flag flag) {
+        super(delegate.getWidth(), delegate.getHeight());
+        this.delegate = delegate;
+        this.flag = flag;
+    }
+
+    /**
+     * Thrown by every read once the source is aborted. Only thrown to unwind, so like ZXing's
+     * {@link com.google.zxing.NotFoundException} there is one instance, without a stack trace.
+     */
+    static final class AbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final AbortedException INSTANCE = new AbortedException();
+
+        private AbortedException() {
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final class Flag {
+        private volatile boolean aborted;
+    }
+
+    /**
+     * Makes every further read throw, from any thread.
+     */
+    void abort() {
+        flag.aborted = true;
+    }
+
+    /**
+     * @return the wrapped source, to read without further checks
+     * @throws AbortedException if already aborted
+     */
+    LuminanceSource delegate() {
+        check();
+        return delegate;
+    }
+
+    private void check() {
+        if (flag.aborted) {
+            throw AbortedException.INSTANCE;
+        }
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        check();
+        return delegate.getRow(y, row);
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        check();
+        return delegate.getMatrix();
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return delegate.isCropSupported();
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new AbortableLuminanceSource(delegate.crop(left, top, width, height), flag);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return delegate.isRotateSupported();
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        return new AbortableLuminanceSource(delegate.rotateCounterClockwise(), flag);
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise45() {
+        return new AbortableLuminanceSource(delegate.rotateCounterClockwise45(), flag);
+    }
+}
@@ -0,0 +1,141 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Learns which barcode formats actually decode, and narrows the readers tried on each frame down
+ * to those. The full format set is still tried periodically, and on one frame after each run of
+ * misses with the narrow set, so that a new kind of code is picked up quickly while frames without
+ * any code, as while aiming, still mostly get the narrow set.
+ * <p>
+ * A scan usually ends with its first result, so what is learned is kept for the process: there is
+ * one scheduler per format set, see {@link #forFormats(Collection)}, shared by all decode workers
+ * of every scan, so every method is synchronized.
+ * <p>
+ * 自适应的条码格式调度：优先（或仅）尝试此前扫描中成功过的格式，定期或连续失败后再尝试全部格式
+ */
+final class AdaptiveFormatScheduler {
+    /**
+     * Every this many frames the full format set is tried, whatever has been learned
+     */
+    private static final int WIDEN_INTERVAL = 10;
+    /**
+     * After this many consecutive misses with the learned formats, the full set is tried on the
+     * next frame, and the count starts over
+     */
+    private static final int MAX_NARROW_MISSES = 8;
+    /**
+     * A format needs at least this share of the successes to be in the learned set
+     */
+    private static final float MIN_SUCCESS_SHARE = 0.1f;
+    /**
+     * Success counts are halved once they add up to this, so that old scans fade out
+     */
+    private static final int MAX_TOTAL_SUCCESSES = 64;
+
+    private static final Map<Set<BarcodeFormat>, AdaptiveFormatScheduler> SCHEDULERS = new HashMap<>();
+
+    private final Set<BarcodeFormat> allFormats;
+    private final int[] successCounts = new int[BarcodeFormat.values().length];
+    private int totalSuccesses;
+    /**
+     * The learned formats, replaced rather than modified so that callers can compare by identity
+     */
+    private Set<BarcodeFormat> preferredFormats = Collections.emptySet();
+    private int frameCount;
+    private int narrowMisses;
+
+    AdaptiveFormatScheduler(Collection<BarcodeFormat> allFormats) {
+        this.allFormats = Collections.unmodifiableSet(EnumSet.copyOf(allFormats));
+    }
+
+    /**
+     * @return the scheduler of the process for this format set, which keeps what earlier scans
+     * learned. Its misses so far are forgotten, as a new scan starts.
+     */
+    static AdaptiveFormatScheduler forFormats(Collection<BarcodeFormat> allFormats) {
+        Set<BarcodeFormat> key = EnumSet.copyOf(allFormats);
+        AdaptiveFormatScheduler scheduler;
+        synchronized (SCHEDULERS) {
+            scheduler = SCHEDULERS.get(key);
+            if (scheduler == null) {
+                scheduler = new AdaptiveFormatScheduler(key);
+                SCHEDULERS.put(key, scheduler);
+            }
+        }
+        scheduler.startScan();
+        return scheduler;
+    }
+
+    private synchronized void startScan() {
+        frameCount = 0;
+        narrowMisses = 0;
+    }
+
+    /**
+     * @return the formats to try on the next frame. The same instance is returned for as long as
+     * the learned set does not change.
+     */
+    synchronized Set<BarcodeFormat> nextFormats() {
+        frameCount++;
+        if (narrowMisses >= MAX_NARROW_MISSES) {
+            // Only one frame: with no code in view, staying wide would run every reader again
+            narrowMisses = 0;
+            return allFormats;
+        }
+        if (preferredFormats.isEmpty() || frameCount % WIDEN_INTERVAL == 0) {
+            return allFormats;
+        }
+        return preferredFormats;
+    }
+
+    Set<BarcodeFormat> getAllFormats() {
+        return allFormats;
+    }
+
+    synchronized void onDecoded(BarcodeFormat format) {
+        narrowMisses = 0;
+        successCounts[format.ordinal()]++;
+        totalSuccesses++;
+        if (totalSuccesses >= MAX_TOTAL_SUCCESSES) {
+            totalSuccesses = 0;
+            for (int i = 0; i < successCounts.length; i++) {
+                successCounts[i] /= 2;
+                totalSuccesses += successCounts[i];
+            }
+        }
+        updatePreferredFormats();
+    }
+
+    /**
+     * @param formats the formats which were tried, as returned by {@link #nextFormats()}
+     */
+    synchronized void onMissed(Set<BarcodeFormat> formats) {
+        if (formats != allFormats) {
+            narrowMisses++;
+        }
+    }
+
+    private void updatePreferredFormats() {
+        Set<BarcodeFormat> formats = EnumSet.noneOf(BarcodeFormat.class);
+        for (BarcodeFormat format : allFormats) {
+            int count = successCounts[format.ordinal()];
+            if (count > 0 && count >= MIN_SUCCESS_SHARE * totalSuccesses) {
+                formats.add(format);
+            }
+        }
+        if (formats.size() == allFormats.size()) {
+            formats.clear();
+        }
+        if (!formats.equals(preferredFormats)) {
+            preferredFormats = Collections.unmodifiableSet(formats);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+
+/**
+ * The buffers of binarization, kept from one frame to the next: the luminance matrix and row, the
+ * block black points and the bit matrices. The binarizers it creates work like ZXing's
+ * {@link com.google.zxing.common.GlobalHistogramBinarizer} and
+ * {@link com.google.zxing.common.HybridBinarizer}, and give the same bits, but take their buffers
+ * from here instead of allocating them for every frame. ZXing's are final or allocate in private
+ * code, hence the copies.
+ * <p>
+ * A bit matrix handed out is reused by the next binarizer of the same arena which needs one of
+ * that size, so it must only be used during the decode pass it came from. Binarizers created
+ * from these for cropped or rotated images get a fresh arena, since the readers may still use the
+ * matrix of the original. Not thread-safe: each worker has its own.
+ * <p>
+ * 二值化缓冲区复用：亮度矩阵、分块阈值和BitMatrix在帧与帧之间复用，避免每帧数MB的短命对象
+ */
+final class BinarizerArena {
+    private static final int LUMINANCE_BITS = 5;
+    private static final int LUMINANCE_SHIFT = 8 - LUMINANCE_BITS;
+    private static final int LUMINANCE_BUCKETS = 1 << LUMINANCE_BITS;
+
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+    private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    private byte[] luminances = new byte[0];
+    private byte[] row = new byte[0];
+    private final int[] buckets = new int[LUMINANCE_BUCKETS];
+    private int[] blackPoints = new int[0];
+    /**
+     * The two most recent bit matrices, the most recent first. A window and the whole framing rect
+     * alternate in size, so one would keep being replaced.
+     */
+    private final BitMatrix[] matrices = new BitMatrix[2];
+
+    Binarizer globalHistogram(LuminanceSource source) {
+        return new GlobalHistogram(source, this);
+    }
+
+    Binarizer hybrid(LuminanceSource source) {
+        return new Hybrid(source, this);
+    }
+
+    private byte[] row(LuminanceSource source, int y) {
+        if (row.length < source.getWidth()) {
+            row = new byte[source.getWidth()];
+        }
+        return source.getRow(y, row);
+    }
+
+    private byte[] matrix(LuminanceSource source) {
+        if (source instanceof AbortableLuminanceSource) {
+            source = ((AbortableLuminanceSource) source).delegate();
+        }
+        if (source instanceof RotatedYUVLuminanceSource) {
+            luminances = ((RotatedYUVLuminanceSource) source).getMatrix(luminances);
+            return luminances;
+        }
+        return source.getMatrix();
+    }
+
+    private int[] clearedBuckets() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = 0;
+        }
+        return buckets;
+    }
+
+    private int[] blackPoints(int size) {
+        if (blackPoints.length < size) {
+            blackPoints = new int[size];
+        }
+        return blackPoints;
+    }
+
+    private BitMatrix clearedMatrix(int width, int height) {
+        BitMatrix matrix;
+        if (fits(matrices[0], width, height)) {
+            matrix = matrices[0];
+        } else if (fits(matrices[1], width, height)) {
+            matrix = matrices[1];
+            matrices[1] = matrices[0];
+            matrices[0] = matrix;
+        } else {
+            matrix = new BitMatrix(width, height);
+            matrices[1] = matrices[0];
+            matrices[0] = matrix;
+            return matrix;
+        }
+        matrix.clear();
+        return matrix;
+    }
+
+    private static boolean fits(BitMatrix matrix, int width, int height) {
+        return matrix != null && matrix.getWidth() == width && matrix.getHeight() == height;
+    }
+
+    /**
+     * @return the threshold between the two peaks of the histogram
+     * @throws NotFoundException if the histogram does not have two distinct peaks
+     */
+    private static int estimateBlackPoint(int[] buckets) throws NotFoundException {
+        // Find the tallest peak in the histogram.
+        int numBuckets = buckets.length;
+        int maxBucketCount = 0;
+        int firstPeak = 0;
+        int firstPeakSize = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            if (buckets[x] > firstPeakSize) {
+                firstPeak = x;
+                firstPeakSize = buckets[x];
+            }
+            if (buckets[x] > maxBucketCount) {
+                maxBucketCount = buckets[x];
+            }
+        }
+
+        // Find the second-tallest peak which is somewhat far from the tallest peak.
+        int secondPeak = 0;
+        int secondPeakScore = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            int distanceToBiggest = x - firstPeak;
+            // Encourage more distant second peaks by multiplying by square of distance.
+            int score = buckets[x] * distanceToBiggest * distanceToBiggest;
+            if (score > secondPeakScore) {
+                secondPeak = x;
+                secondPeakScore = score;
+            }
+        }
+
+        // Make sure firstPeak corresponds to the black peak.
+        if (firstPeak > secondPeak) {
+            int temp = firstPeak;
+            firstPeak = secondPeak;
+            secondPeak = temp;
+        }
+
+        // If there is too little contrast in the image to pick a meaningful black point, throw
+        // rather than waste time trying to decode the image, and risk false positives.
+        if (secondPeak - firstPeak <= numBuckets / 16) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+
+        // Find a valley between them that is low and closer to the white peak.
+        int bestValley = secondPeak - 1;
+        int bestValleyScore = -1;
+        for (int x = secondPeak - 1; x > firstPeak; x--) {
+            int fromFirst = x - firstPeak;
+            int score = fromFirst * fromFirst * (secondPeak - x) * (maxBucketCount - buckets[x]);
+            if (score > bestValleyScore) {
+                bestValley = x;
+                bestValleyScore = score;
+            }
+        }
+
+        return bestValley << LUMINANCE_SHIFT;
+    }
+
+    /**
+     * One threshold for the whole image, from the histogram of a few rows, or of the row itself
+     * for {@link #getBlackRow(int, BitArray)}.
+     */
+    private static class GlobalHistogram extends Binarizer {
+        final BinarizerArena arena;
+        BitMatrix matrix;
+
+        GlobalHistogram(LuminanceSource source, BinarizerArena arena) {
+            super(source);
+            this.arena = arena;
+        }
+
+        @Override
+        public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+            LuminanceSource source = getLuminanceSource();
+            int width = source.getWidth();
+            if (row == null || row.getSize() < width) {
+                row = new BitArray(width);
+            } else {
+                row.clear();
+            }
+
+            byte[] localLuminances = arena.row(source, y);
+            int[] localBuckets = arena.clearedBuckets();
+            for (int x = 0; x < width; x++) {
+                localBuckets[(localLuminances[x] & 0xff) >> LUMINANCE_SHIFT]++;
+            }
+            int blackPoint = estimateBlackPoint(localBuckets);
+
+            if (width < 3) {
+                // Special case for very small images
+                for (int x = 0; x < width; x++) {
+                    if ((localLuminances[x] & 0xff) < blackPoint) {
+                        row.set(x);
+                    }
+                }
+            } else {
+                int left = localLuminances[0] & 0xff;
+                int center = localLuminances[1] & 0xff;
+                for (int x = 1; x < width - 1; x++) {
+                    int right = localLuminances[x + 1] & 0xff;
+                    // A simple -1 4 -1 box filter with a weight of 2.
+                    if (((center * 4) - left - right) / 2 < blackPoint) {
+                        row.set(x);
+                    }
+                    left = center;
+                    center = right;
+                }
+            }
+            return row;
+        }
+
+        @Override
+        public BitMatrix getBlackMatrix() throws NotFoundException {
+            if (matrix == null) {
+                matrix = globalHistogramMatrix();
+            }
+            return matrix;
+        }
+
+        final BitMatrix globalHistogramMatrix() throws NotFoundException {
+            LuminanceSource source = getLuminanceSource();
+            int width = source.getWidth();
+            int height = source.getHeight();
+
+            // Quickly calculates the histogram by sampling four rows from the image. This proved to
+            // be more robust on the blackbox tests than sampling a diagonal as we used to do.
+            int[] localBuckets = arena.clearedBuckets();
+            for (int y = 1; y < 5; y++) {
+                byte[] localLuminances = arena.row(source, height * y / 5);
+                int right = (width * 4) / 5;
+                for (int x = width / 5; x < right; x++) {
+                    localBuckets[(localLuminances[x] & 0xff) >> LUMINANCE_SHIFT]++;
+                }
+            }
+            int blackPoint = estimateBlackPoint(localBuckets);
+
+            // We delay reading the entire image luminance until the black point estimation
+            // succeeds. Although we end up reading four rows twice, it is consistent with our
+            // motto of "fail quickly" which is necessary for continuous scanning.
+            byte[] localLuminances = arena.matrix(source);
+            BitMatrix result = arena.clearedMatrix(width, height);
+            for (int y = 0; y < height; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    if ((localLuminances[offset + x] & 0xff) < blackPoint) {
+                        result.set(x, y);
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Binarizer createBinarizer(LuminanceSource source) {
+            return new GlobalHistogram(source, new BinarizerArena());
+        }
+    }
+
+    /**
+     * A local threshold for every 8x8 block, from the average of the 5x5 blocks around it. Falls
+     * back to one global threshold for images too small to have enough blocks.
+     */
+    private static final class Hybrid extends GlobalHistogram {
+        Hybrid(LuminanceSource source, BinarizerArena arena) {
+            super(source, arena);
+        }
+
+        @Override
+        public BitMatrix getBlackMatrix() throws NotFoundException {
+            if (matrix != null) {
+                return matrix;
+            }
+            LuminanceSource source = getLuminanceSource();
+            int width = source.getWidth();
+            int height = source.getHeight();
+            if (width >= MINIMUM_DIMENSION && height >= MINIMUM_DIMENSION) {
+                byte[] luminances = arena.matrix(source);
+                int subWidth = width >> BLOCK_SIZE_POWER;
+                if ((width & BLOCK_SIZE_MASK) != 0) {
+                    subWidth++;
+                }
+                int subHeight = height >> BLOCK_SIZE_POWER;
+                if ((height & BLOCK_SIZE_MASK) != 0) {
+                    subHeight++;
+                }
+                int[] blackPoints = arena.blackPoints(subWidth * subHeight);
+                calculateBlackPoints(luminances, subWidth, subHeight, width, height, blackPoints);
+                BitMatrix newMatrix = arena.clearedMatrix(width, height);
+                calculateThresholdForBlock(luminances, subWidth, subHeight, width, height,
+                        blackPoints, newMatrix);
+                matrix = newMatrix;
+            } else {
+                // If the image is too small, fall back to the global histogram approach.
+                matrix = globalHistogramMatrix();
+            }
+            return matrix;
+        }
+
+        @Override
+        public Binarizer createBinarizer(LuminanceSource source) {
+            return new Hybrid(source, new BinarizerArena());
+        }
+
+        /**
+         * For each block in the image, calculate the average black point using a 5x5 grid of the
+         * blocks around it. Also handles the corner cases (fractional blocks are computed based
+         * on the last pixels in the row/column which are also used in the previous block).
+         */
+        private static void calculateThresholdForBlock(byte[] luminances,
+                                                       int subWidth,
+                                                       int subHeight,
+                                                       int width,
+                                                       int height,
+                                                       int[] blackPoints,
+                                                       BitMatrix matrix) {
+            int maxYOffset = height - BLOCK_SIZE;
+            int maxXOffset = width - BLOCK_SIZE;
+            for (int y = 0; y < subHeight; y++) {
+                int yoffset = y << BLOCK_SIZE_POWER;
+                if (yoffset > maxYOffset) {
+                    yoffset = maxYOffset;
+                }
+                int top = cap(y, 2, subHeight - 3);
+                for (int x = 0; x < subWidth; x++) {
+                    int xoffset = x << BLOCK_SIZE_POWER;
+                    if (xoffset > maxXOffset) {
+                        xoffset = maxXOffset;
+                    }
+                    int left = cap(x, 2, subWidth - 3);
+                    int sum = 0;
+                    for (int z = -2; z <= 2; z++) {
+                        int rowOffset = (top + z) * subWidth + left;
+                        sum += blackPoints[rowOffset - 2] + blackPoints[rowOffset - 1] +
+                                blackPoints[rowOffset] + blackPoints[rowOffset + 1] +
+                                blackPoints[rowOffset + 2];
+                    }
+                    int average = sum / 25;
+                    thresholdBlock(luminances, xoffset, yoffset, average, width, matrix);
+                }
+            }
+        }
+
+        private static int cap(int value, int min, int max) {
+            return value < min ? min : value > max ? max : value;
+        }
+
+        /**
+         * Applies a single threshold to a block of pixels.
+         */
+        private static void thresholdBlock(byte[] luminances,
+                                           int xoffset,
+                                           int yoffset,
+                                           int threshold,
+                                           int stride,
+                                           BitMatrix matrix) {
+            for (int y = 0, offset = yoffset * stride + xoffset; y < BLOCK_SIZE; y++, offset += stride) {
+                for (int x = 0; x < BLOCK_SIZE; x++) {
+                    // Comparison needs to be <= so that black == 0 pixels are black even if the
+                    // threshold is 0.
+                    if ((luminances[offset + x] & 0xFF) <= threshold) {
+                        matrix.set(xoffset + x, yoffset + y);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Calculates a single black point for each block of pixels, row by row into blackPoints.
+         */
+        private static void calculateBlackPoints(byte[] luminances,
+                                                 int subWidth,
+                                                 int subHeight,
+                                                 int width,
+                                                 int height,
+                                                 int[] blackPoints) {
+            int maxYOffset = height - BLOCK_SIZE;
+            int maxXOffset = width - BLOCK_SIZE;
+            for (int y = 0; y < subHeight; y++) {
+                int yoffset = y << BLOCK_SIZE_POWER;
+                if (yoffset > maxYOffset) {
+                    yoffset = maxYOffset;
+                }
+                for (int x = 0; x < subWidth; x++) {
+                    int xoffset = x << BLOCK_SIZE_POWER;
+                    if (xoffset > maxXOffset) {
+                        xoffset = maxXOffset;
+                    }
+                    int sum = 0;
+                    int min = 0xFF;
+                    int max = 0;
+                    for (int yy = 0, offset = yoffset * width + xoffset; yy < BLOCK_SIZE; yy++, offset += width) {
+                        for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                            int pixel = luminances[offset + xx] & 0xFF;
+                            sum += pixel;
+                            // still looking for good contrast
+                            if (pixel < min) {
+                                min = pixel;
+                            }
+                            if (pixel > max) {
+                                max = pixel;
+                            }
+                        }
+                        // short-circuit min/max tests once dynamic range is met
+                        if (max - min > MIN_DYNAMIC_RANGE) {
+                            // finish the rest of the rows quickly
+                            for (yy++, offset += width; yy < BLOCK_SIZE; yy++, offset += width) {
+                                for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                                    sum += luminances[offset + xx] & 0xFF;
+                                }
+                            }
+                        }
+                    }
+
+                    // The default estimate is the average of the values in the block.
+                    int average = sum >> (BLOCK_SIZE_POWER * 2);
+                    if (max - min <= MIN_DYNAMIC_RANGE) {
+                        // If variation within the block is low, assume this is a block with only
+                        // light or only dark pixels. In that case we do not want to use the
+                        // average, as it would divide this low contrast area into black and white
+                        // pixels, essentially creating data out of noise.
+                        //
+                        // Default the blackpoint for these blocks to be half the min - effectively
+                        // white blocks are counted as white unless in a dark neighbourhood.
+                        average = min / 2;
+
+                        if (y > 0 && x > 0) {
+                            // Correct the "white background" assumption for blocks that have
+                            // neighbors by comparing the pixels in this block to the previously
+                            // calculated black points. This is based on the fact that dark
+                            // barcodes are symbology dependent, and the black point is only an
+                            // estimate of the transition.
+                            int above = (y - 1) * subWidth + x;
+                            int averageNeighborBlackPoint = (blackPoints[above] +
+                                    (2 * blackPoints[y * subWidth + x - 1]) +
+                                    blackPoints[above - 1]) / 4;
+                            if (min < averageNeighborBlackPoint) {
+                                average = averageNeighborBlackPoint;
+                            }
+                        }
+                    }
+                    blackPoints[y * subWidth + x] = average;
+                }
+            }
+        }
+    }
+}
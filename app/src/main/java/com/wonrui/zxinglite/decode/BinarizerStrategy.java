@@ -0,0 +1,24 @@
+package com.wonrui.zxinglite.decode;
+
+/**
+ * Enumerates settings of the preference choosing how frames are binarized for the readers.
+ * <p>
+ * 二值化策略：始终使用HybridBinarizer，或先用开销更低的GlobalHistogramBinarizer
+ */
+public enum BinarizerStrategy {
+    /**
+     * Always {@link com.google.zxing.common.HybridBinarizer}, which copes with uneven lighting.
+     */
+    HYBRID,
+    /**
+     * {@link com.google.zxing.common.GlobalHistogramBinarizer} first, a single threshold for the
+     * whole frame which is much cheaper and enough for well-lit frames. The 2D formats are tried
+     * again with {@link com.google.zxing.common.HybridBinarizer} if nothing decoded. Where that
+     * keeps being what decodes, the lighting is uneven and the global pass is skipped for a while.
+     */
+    GLOBAL_FIRST;
+
+    public static BinarizerStrategy parse(String strategyString) {
+        return strategyString == null ? GLOBAL_FIRST : valueOf(strategyString);
+    }
+}
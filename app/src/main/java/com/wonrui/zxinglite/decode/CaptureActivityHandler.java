@@ -4,17 +4,18 @@ package com.wonrui.zxinglite.decode;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.wonrui.zxinglite.CaptureActivity;
 import com.wonrui.zxinglite.R;
-import com.wonrui.zxinglite.camera.CameraManager;
+import com.wonrui.zxinglite.camera.FrameSource;
 import com.wonrui.zxinglite.view.ViewfinderResultPointCallback;
 import com.google.zxing.Result;
 
+import java.util.Arrays;
+
 /**
  * This class handles all the messaging which comprises the state machine for capture.
  */
@@ -22,24 +23,32 @@ public class CaptureActivityHandler extends Handler {
     private static final String TAG = CaptureActivityHandler.class.getSimpleName();
 
     private final CaptureActivity activity;
-    private final DecodeThread decodeThread;
+    private final DecodeWorkerPool decodePool;
+    /**
+     * Which workers currently hold a frame or a frame request
+     */
+    private final boolean[] decoderBusy;
     private State state;
-    private final CameraManager cameraManager;
+    /**
+     * The thumbnail handed to the activity with the last result, reused once decoding restarts
+     */
+    private ThumbnailPool.Thumbnail shownThumbnail;
+    /**
+     * Non-null in bulk mode: results are streamed to the activity, minus duplicates, and decoding
+     * goes on right away
+     */
+    private final DuplicateFilter bulkFilter;
+    private final FrameSource frameSource;
 
     public void quitSynchronously() {
         state = State.DONE;
-        cameraManager.stopPreview();
-        Message quit = Message.obtain(decodeThread.getHandler(), R.id.quit);
-        quit.sendToTarget();
-        try {
-            // Wait at most half a second; should be enough time, and onPause() will timeout quickly
-            decodeThread.join(500L);
-        } catch (InterruptedException e) {
-            // continue
-        }
+        frameSource.stopPreview();
+        // Wait at most half a second; should be enough time, and onPause() will timeout quickly
+        decodePool.quitSynchronously(500L);
 
         // Be absolutely sure we don't send any queued up messages
         removeMessages(R.id.decode_succeeded);
+        removeMessages(R.id.decode_succeeded_multiple);
         removeMessages(R.id.decode_failed);
     }
 
@@ -50,17 +59,27 @@ public class CaptureActivityHandler extends Handler {
     }
 
     public CaptureActivityHandler(CaptureActivity activity,
-                                  CameraManager cameraManager,
-                                  int decodeMode) {
+                                  FrameSource frameSource,
+                                  int decodeMode,
+                                  int decodeWorkers,
+                                  boolean thumbnails,
+                                  boolean multiple,
+                                  DuplicateFilter bulkFilter) {
         this.activity = activity;
-        decodeThread = new DecodeThread(activity, decodeMode, new ViewfinderResultPointCallback(
-                activity.getViewfinderView()));
-        decodeThread.start();
+        this.bulkFilter = bulkFilter;
+        decodePool = new DecodeWorkerPool(activity, frameSource, decodeMode,
+                new ViewfinderResultPointCallback(activity.getViewfinderView()), decodeWorkers,
+                thumbnails, multiple);
+        decodePool.start();
+        // The pool may run fewer workers than asked for
+        decoderBusy = new boolean[decodePool.size()];
         state = State.SUCCESS;
 
         // Start ourselves capturing previews and decoding.
-        this.cameraManager = cameraManager;
-        cameraManager.startPreview();
+        this.frameSource = frameSource;
+        // One buffer per worker, plus one held back as the latest frame and one being filled
+        frameSource.setPreviewBufferCount(decodePool.size() + 2);
+        frameSource.startPreview();
         restartPreviewAndDecode();
     }
 
@@ -71,25 +90,36 @@ public class CaptureActivityHandler extends Handler {
                 restartPreviewAndDecode();
                 break;
             case R.id.decode_succeeded:
-                state = State.SUCCESS;
-                Bundle bundle = message.getData();
-                Bitmap barcode = null;
-                float scaleFactor = 1.0f;
-                if (bundle != null) {
-                    byte[] compressedBitmap = bundle.getByteArray(DecodeThread.BARCODE_BITMAP);
-                    if (compressedBitmap != null) {
-                        barcode = BitmapFactory.decodeByteArray(compressedBitmap, 0, compressedBitmap.length, null);
-                        // Mutable copy:
-                        barcode = barcode.copy(Bitmap.Config.ARGB_8888, true);
+            case R.id.decode_succeeded_multiple:
+                decodePool.getMetrics().markResultDelivered(message.arg2);
+                decoderBusy[message.arg1] = false;
+                ThumbnailPool thumbnailPool = decodePool.getThumbnailPool();
+                ThumbnailPool.Thumbnail thumbnail =
+                        thumbnailPool == null ? null : thumbnailPool.take(message.arg1);
+                if (state != State.PREVIEW) {
+                    // Another worker got there first, keep only the first result
+                    if (thumbnail != null) {
+                        thumbnailPool.release(thumbnail);
                     }
-                    scaleFactor = bundle.getFloat(DecodeThread.BARCODE_SCALED_FACTOR);
+                    break;
                 }
-                activity.handleDecode((Result) message.obj, barcode, scaleFactor);
+                boolean multiple = message.what == R.id.decode_succeeded_multiple;
+                Result result = multiple ? null : (Result) message.obj;
+                Result[] results = multiple ? (Result[]) message.obj : null;
+                if (bulkFilter != null) {
+                    handleBulkResult(result, results, thumbnail);
+                    break;
+                }
+                state = State.SUCCESS;
+                decodePool.setDecoding(false);
+                showResult(result, results, thumbnail);
                 break;
             case R.id.decode_failed:
                 // We're decoding as fast as possible, so when one decode fails, start another.
-                state = State.PREVIEW;
-                cameraManager.requestPreviewFrame(decodeThread.getHandler(), R.id.decode);
+                decoderBusy[message.arg1] = false;
+                if (state == State.PREVIEW) {
+                    requestDecodes();
+                }
                 break;
             case R.id.return_scan_result:
                 activity.setResult(Activity.RESULT_OK, (Intent) message.obj);
@@ -98,11 +128,86 @@ public class CaptureActivityHandler extends Handler {
         }
     }
 
+    /**
+     * Reports new codes and keeps scanning, without leaving {@link State#PREVIEW}.
+     */
+    private void handleBulkResult(Result result, Result[] results, ThumbnailPool.Thumbnail thumbnail) {
+        long now = SystemClock.uptimeMillis();
+        boolean isNew;
+        if (results == null) {
+            isNew = bulkFilter.accept(result, now);
+        } else {
+            results = filterNew(results, now);
+            isNew = results.length > 0;
+        }
+        if (isNew) {
+            showResult(result, results, thumbnail);
+        } else if (thumbnail != null) {
+            decodePool.getThumbnailPool().release(thumbnail);
+        }
+        requestDecodes();
+    }
+
+    private Result[] filterNew(Result[] results, long now) {
+        int count = 0;
+        Result[] newResults = new Result[results.length];
+        for (Result result : results) {
+            if (bulkFilter.accept(result, now)) {
+                newResults[count++] = result;
+            }
+        }
+        return count == results.length ? results : Arrays.copyOf(newResults, count);
+    }
+
+    /**
+     * Hands the result, or in multiple mode the results, to the activity. The thumbnail stays
+     * with it until the next result, or until decoding restarts.
+     */
+    private void showResult(Result result, Result[] results, ThumbnailPool.Thumbnail thumbnail) {
+        releaseShownThumbnail();
+        shownThumbnail = thumbnail;
+        Bitmap barcode = thumbnail == null ? null : thumbnail.getBitmap();
+        float scaleFactor = thumbnail == null ? 1.0f : thumbnail.getScaleFactor();
+        if (results != null) {
+            activity.handleDecodeMultiple(results, barcode, scaleFactor);
+        } else {
+            activity.handleDecode(result, barcode, scaleFactor);
+        }
+    }
+
+    private void releaseShownThumbnail() {
+        if (shownThumbnail != null) {
+            decodePool.getThumbnailPool().release(shownThumbnail);
+            shownThumbnail = null;
+        }
+    }
+
+    /**
+     * @return the decode latency and throughput metrics of this capture session
+     */
+    public DecodeMetrics getMetrics() {
+        return decodePool.getMetrics();
+    }
+
     private void restartPreviewAndDecode() {
         if (state == State.SUCCESS) {
             state = State.PREVIEW;
-            cameraManager.requestPreviewFrame(decodeThread.getHandler(), R.id.decode);
+            releaseShownThumbnail();
+            decodePool.setDecoding(true);
+            requestDecodes();
             activity.drawViewfinder();
         }
     }
+
+    /**
+     * Requests a preview frame for every worker which is idle.
+     */
+    private void requestDecodes() {
+        for (int i = 0; i < decoderBusy.length; i++) {
+            if (!decoderBusy[i]) {
+                decoderBusy[i] = true;
+                frameSource.requestPreviewFrame(decodePool.getHandler(i), R.id.decode);
+            }
+        }
+    }
 }
@@ -11,11 +11,12 @@ public class DecodeFormatManager {
 
     static final Set<BarcodeFormat> PRODUCT_FORMATS;
     static final Set<BarcodeFormat> INDUSTRIAL_FORMATS;
-    private static final Set<BarcodeFormat> ONE_D_FORMATS;
+    static final Set<BarcodeFormat> ONE_D_FORMATS;
     static final Set<BarcodeFormat> QR_CODE_FORMATS = EnumSet.of(BarcodeFormat.QR_CODE);
     static final Set<BarcodeFormat> DATA_MATRIX_FORMATS = EnumSet.of(BarcodeFormat.DATA_MATRIX);
     static final Set<BarcodeFormat> AZTEC_FORMATS = EnumSet.of(BarcodeFormat.AZTEC);
     static final Set<BarcodeFormat> PDF417_FORMATS = EnumSet.of(BarcodeFormat.PDF_417);
+    static final Set<BarcodeFormat> ALL_FORMATS;
     static {
         PRODUCT_FORMATS = EnumSet.of(BarcodeFormat.UPC_A,
                 BarcodeFormat.UPC_E,
@@ -30,5 +31,10 @@ public class DecodeFormatManager {
                 BarcodeFormat.CODABAR);
         ONE_D_FORMATS = EnumSet.copyOf(PRODUCT_FORMATS);
         ONE_D_FORMATS.addAll(INDUSTRIAL_FORMATS);
+        ALL_FORMATS = EnumSet.copyOf(ONE_D_FORMATS);
+        ALL_FORMATS.addAll(QR_CODE_FORMATS);
+        ALL_FORMATS.addAll(DATA_MATRIX_FORMATS);
+        ALL_FORMATS.addAll(AZTEC_FORMATS);
+        ALL_FORMATS.addAll(PDF417_FORMATS);
     }
 }
@@ -1,7 +1,5 @@
 package com.wonrui.zxinglite.decode;
 
-import android.graphics.Bitmap;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -9,28 +7,44 @@ import android.util.Log;
 
 import com.wonrui.zxinglite.CaptureActivity;
 import com.wonrui.zxinglite.R;
-import com.google.zxing.BinaryBitmap;
+import com.wonrui.zxinglite.camera.FrameRecorder;
+import com.wonrui.zxinglite.camera.PreviewFrame;
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
 import com.google.zxing.DecodeHintType;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.PlanarYUVLuminanceSource;
-import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Map;
 
 public class DecodeHandler extends Handler {
     private static final String TAG = DecodeHandler.class.getSimpleName();
 
     private final CaptureActivity activity;
-    private final MultiFormatReader multiFormatReader;
+    private final DecodeWorkerPool pool;
+    private final int index;
+    private final FrameDecoder frameDecoder;
+    /**
+     * Skips hopeless frames before decoding, or null to decode every frame
+     */
+    private final FrameQualityFilter qualityFilter;
     private boolean running = true;
 
-    public DecodeHandler(CaptureActivity activity, Map<DecodeHintType, Object> hints) {
-        multiFormatReader = new MultiFormatReader();
-        multiFormatReader.setHints(hints);
+    DecodeHandler(CaptureActivity activity,
+                  DecodeWorkerPool pool,
+                  int index,
+                  Map<DecodeHintType, Object> hints) {
         this.activity = activity;
+        this.pool = pool;
+        this.index = index;
+        frameDecoder = new FrameDecoder(hints,
+                pool.getFormatScheduler(),
+                pool.getFamilyDecoder(),
+                pool.getMetrics(),
+                pool.getRoiTracker(),
+                pool.getBinarizerStrategy(),
+                pool.isPyramid(),
+                pool.getFrameFusion());
+        qualityFilter = pool.isQualityFiltered() ? new FrameQualityFilter() : null;
     }
 
     @Override
@@ -40,7 +54,15 @@ public class DecodeHandler extends Handler {
         }
         switch (message.what) {
             case R.id.decode:
-                decode((byte[]) message.obj, message.arg1, message.arg2);
+                PreviewFrame frame = (PreviewFrame) message.obj;
+                if (pool.isDecoding()) {
+                    decode(frame);
+                } else {
+                    // A result was already accepted, this frame is stale
+                    pool.getMetrics().recordDropped(1 + frame.getDroppedBefore());
+                    frame.release();
+                    sendFailed();
+                }
                 break;
             case R.id.quit:
                 running = false;
@@ -50,66 +72,97 @@ public class DecodeHandler extends Handler {
     }
 
     /**
-     * Decode the data within the viewfinder rectangle, and time how long it took. For efficiency,
-     * reuse the same reader objects from one decode to the next.
+     * Decode the data within the viewfinder rectangle, and record how long each stage took. For
+     * efficiency, reuse the same reader objects from one decode to the next. The outcome is
+     * reported with this worker's index in arg1, and a {@link Result}, or in multiple mode a
+     * Result[], in obj.
      *
-     * @param data   The YUV preview frame.
-     * @param width  The width of the preview frame.
-     * @param height The height of the preview frame.
+     * @param frame The YUV preview frame, in sensor orientation. Released back to the camera once
+     *              decoding is done.
      */
-    private void decode(byte[] data, int width, int height) {
-        long start = System.currentTimeMillis();
-        Result rawResult = null;
-        byte[] rotatedData = new byte[data.length];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++)
-                rotatedData[x * height + height - y - 1] = data[x + y * width];
+    private void decode(PreviewFrame frame) {
+        DecodeMetrics metrics = pool.getMetrics();
+        metrics.recordFrame(frame.getArrivalNanos(), frame.getDroppedBefore());
+        FrameRecorder recorder = pool.getFrameRecorder();
+        if (recorder != null) {
+            try {
+                recorder.write(frame.getData());
+            } catch (IOException ioe) {
+                Log.w(TAG, "Could not record frame", ioe);
+            }
         }
-        int tmp = width;
-        width = height;
-        height = tmp;
-        data = rotatedData;
-
-        PlanarYUVLuminanceSource source = activity.getCameraManager().buildLuminanceSource(data, width, height);
+        long start = System.nanoTime();
+        Object rawResult = null;
+        RotatedYUVLuminanceSource source = pool.getFrameSource().buildLuminanceSource(
+                frame.getData(), frame.getWidth(), frame.getHeight());
+        metrics.record(DecodeMetrics.Stage.LUMINANCE_SOURCE, System.nanoTime() - start);
+        if (source != null && qualityFilter != null) {
+            long checkStart = System.nanoTime();
+            boolean accepted = qualityFilter.accept(source);
+            metrics.record(DecodeMetrics.Stage.QUALITY_CHECK, System.nanoTime() - checkStart);
+            if (!accepted) {
+                // Too blurry or too dark, move on to the next frame right away
+                metrics.recordRejected();
+                ResultConsensus consensus = pool.getResultConsensus();
+                if (consensus != null) {
+                    // Still a frame without a result, or agreeing reads far apart would confirm
+                    consensus.onMissed();
+                }
+                frame.release();
+                sendFailed();
+                return;
+            }
+        }
+        int found = 0;
         if (source != null) {
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-            try {
-                rawResult = multiFormatReader.decodeWithState(bitmap);
-            } catch (ReaderException re) {
-                // continue
-            } finally {
-                multiFormatReader.reset();
+            if (pool.isMultiple()) {
+                Result[] results = frameDecoder.decodeMultiple(source);
+                found = results.length;
+                rawResult = results;
+            } else {
+                Result result = frameDecoder.decode(source);
+                ResultConsensus consensus = pool.getResultConsensus();
+                if (consensus != null) {
+                    if (result == null) {
+                        consensus.onMissed();
+                    } else if (!consensus.confirm(result)) {
+                        // Not confirmed by enough frames yet, which the other workers are decoding
+                        metrics.recordUnconfirmed();
+                        result = null;
+                    }
+                }
+                rawResult = result;
+                found = result == null ? 0 : 1;
             }
         }
 
         Handler handler = activity.getHandler();
-        if (rawResult != null) {
+        if (found > 0) {
             // Don't log the barcode contents for security.
-            long end = System.currentTimeMillis();
-            Log.d(TAG, "Found barcode in " + (end - start) + " ms");
+            long end = System.nanoTime();
+            Log.d(TAG, "Found " + found + " barcode(s) in " + (end - start) / 1000000L + " ms");
             if (handler != null) {
-                Message message = Message.obtain(handler, R.id.decode_succeeded, rawResult);
-                Bundle bundle = new Bundle();
-                bundleThumbnail(source, bundle);
-                message.setData(bundle);
+                ThumbnailPool thumbnailPool = pool.getThumbnailPool();
+                if (thumbnailPool != null) {
+                    thumbnailPool.publish(index, source);
+                }
+                int what = pool.isMultiple() ? R.id.decode_succeeded_multiple : R.id.decode_succeeded;
+                Message message = Message.obtain(handler, what, index,
+                        DecodeMetrics.resultSentMicros(), rawResult);
                 message.sendToTarget();
             }
+            frame.release();
         } else {
-            if (handler != null) {
-                Message message = Message.obtain(handler, R.id.decode_failed);
-                message.sendToTarget();
-            }
+            frame.release();
+            sendFailed();
         }
     }
 
-    private static void bundleThumbnail(PlanarYUVLuminanceSource source, Bundle bundle) {
-        int[] pixels = source.renderThumbnail();
-        int width = source.getThumbnailWidth();
-        int height = source.getThumbnailHeight();
-        Bitmap bitmap = Bitmap.createBitmap(pixels, 0, width, width, height, Bitmap.Config.ARGB_8888);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, out);
-        bundle.putByteArray(DecodeThread.BARCODE_BITMAP, out.toByteArray());
-        bundle.putFloat(DecodeThread.BARCODE_SCALED_FACTOR, (float) width / source.getWidth());
+    private void sendFailed() {
+        Handler handler = activity.getHandler();
+        if (handler != null) {
+            Message message = Message.obtain(handler, R.id.decode_failed, index, 0);
+            message.sendToTarget();
+        }
     }
 }
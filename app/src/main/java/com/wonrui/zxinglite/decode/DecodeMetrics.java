@@ -0,0 +1,531 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-frame latency and throughput metrics of the decode pipeline. Stage latencies are kept as
+ * nanosecond histograms with power of two buckets, so recording never allocates. Counters cover
+ * frames decoded, successes, misses, frames rejected as hopeless and frames dropped before
+ * decoding.
+ * <p>
+ * The host app reads a {@link Snapshot} at any time, or registers a {@link Listener} which gets
+ * one periodically. Recording is thread-safe, since all decode workers share one instance.
+ * <p>
+ * 解码流水线的耗时与吞吐统计，供宿主应用汇总分析
+ */
+public final class DecodeMetrics {
+    /**
+     * The timed stages of a frame
+     */
+    public enum Stage {
+        /**
+         * From the camera delivering the frame to a worker starting on it
+         */
+        FRAME_WAIT,
+        /**
+         * Building the rotated, cropped luminance source
+         */
+        LUMINANCE_SOURCE,
+        /**
+         * Downscaling large frames for a first pass at half resolution
+         */
+        DOWNSCALE,
+        /**
+         * Checking whether the frame is sharp and bright enough to be worth decoding
+         */
+        QUALITY_CHECK,
+        /**
+         * Averaging frames which did not decode, and decoding the average, in fusion mode
+         */
+        FUSION,
+        /**
+         * Binarization, as far as the readers asked for it
+         */
+        BINARIZE,
+        /**
+         * Reader time of frames where nothing decoded
+         */
+        READ_MISS,
+        /**
+         * From a worker sending a result to the capture handler receiving it
+         */
+        DELIVERY
+    }
+
+    /**
+     * The binarizer of the pass which decoded a frame
+     */
+    public enum Binarization {
+        GLOBAL_HISTOGRAM,
+        HYBRID
+    }
+
+    /**
+     * Receives snapshots, on whichever decode worker thread happens to cross the report interval.
+     */
+    public interface Listener {
+        void onMetrics(Snapshot snapshot);
+    }
+
+    private static final int BUCKETS = 64;
+    private static final long DEFAULT_REPORT_INTERVAL_MS = 1000L;
+
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final Map<BarcodeFormat, Histogram> reads = new EnumMap<>(BarcodeFormat.class);
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong decodedDownscaled = new AtomicLong();
+    private final AtomicLong decodedFused = new AtomicLong();
+    private final AtomicLong unconfirmed = new AtomicLong();
+    private final AtomicLong reducedPasses = new AtomicLong();
+    private final AtomicLong[] decodedBy = new AtomicLong[Binarization.values().length];
+    private final long startNanos;
+    private final AtomicLong lastReportNanos;
+    private volatile Listener listener;
+    private volatile long reportIntervalNanos = DEFAULT_REPORT_INTERVAL_MS * 1000000L;
+
+    public DecodeMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+        for (int i = 0; i < decodedBy.length; i++) {
+            decodedBy[i] = new AtomicLong();
+        }
+        // Filled once up front, so that lookups from several threads need no locking
+        for (BarcodeFormat format : BarcodeFormat.values()) {
+            reads.put(format, new Histogram());
+        }
+        startNanos = System.nanoTime();
+        lastReportNanos = new AtomicLong(startNanos);
+    }
+
+    /**
+     * @param listener   receives a snapshot about every interval, or null to stop
+     * @param intervalMs the reporting interval
+     */
+    public void setListener(Listener listener, long intervalMs) {
+        this.reportIntervalNanos = intervalMs * 1000000L;
+        this.listener = listener;
+    }
+
+    /**
+     * Records a worker starting on a frame.
+     *
+     * @param arrivalNanos  {@link System#nanoTime()} when the camera delivered the frame
+     * @param droppedBefore frames the camera side dropped since the previous delivered one
+     */
+    public void recordFrame(long arrivalNanos, int droppedBefore) {
+        frames.incrementAndGet();
+        if (droppedBefore > 0) {
+            dropped.addAndGet(droppedBefore);
+        }
+        record(Stage.FRAME_WAIT, System.nanoTime() - arrivalNanos);
+        maybeReport();
+    }
+
+    public void recordDropped(int count) {
+        dropped.addAndGet(count);
+    }
+
+    public void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records reader time of a frame which decoded.
+     */
+    public void recordDecoded(BarcodeFormat format, long readNanos) {
+        decoded.incrementAndGet();
+        reads.get(format).record(readNanos);
+    }
+
+    /**
+     * Records reader time of a frame which did not decode.
+     */
+    public void recordMissed(long readNanos) {
+        missed.incrementAndGet();
+        record(Stage.READ_MISS, readNanos);
+    }
+
+    /**
+     * Records which binarizer the pass which decoded a frame used.
+     */
+    public void recordBinarization(Binarization binarization) {
+        decodedBy[binarization.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Records a frame decoded by the pass at half resolution.
+     */
+    public void recordDecodedDownscaled() {
+        decodedDownscaled.incrementAndGet();
+    }
+
+    /**
+     * Records a frame decoded only from the average of it and the frames before it.
+     */
+    public void recordDecodedFused() {
+        decodedFused.incrementAndGet();
+    }
+
+    /**
+     * Records a result held back until more frames agree on it.
+     */
+    public void recordUnconfirmed() {
+        unconfirmed.incrementAndGet();
+    }
+
+    /**
+     * Records a frame tried with the cheapest pass only, after a run of frames without a code.
+     */
+    public void recordReducedPasses() {
+        reducedPasses.incrementAndGet();
+    }
+
+    /**
+     * Records a frame which was not decoded at all, for being too blurry or too dark.
+     */
+    public void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Called by a worker just before sending a result to the capture handler, which gets the
+     * timestamp back with the result. Workers may send results at the same time, so it travels
+     * with the message instead of being kept here.
+     *
+     * @return the time in microseconds, wrapping around every 71 minutes, to fit in a message arg
+     */
+    static int resultSentMicros() {
+        return (int) (System.nanoTime() / 1000L);
+    }
+
+    /**
+     * Called by the capture handler on receiving a result.
+     *
+     * @param sentMicros the {@link #resultSentMicros()} the result was sent with
+     */
+    void markResultDelivered(int sentMicros) {
+        // int arithmetic, so that the wrap around cancels out
+        int elapsedMicros = resultSentMicros() - sentMicros;
+        record(Stage.DELIVERY, elapsedMicros * 1000L);
+    }
+
+    public Snapshot snapshot() {
+        Map<Stage, Timing> stageTimings = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stageTimings.put(stage, stages[stage.ordinal()].toTiming());
+        }
+        Map<BarcodeFormat, Timing> readTimings = new EnumMap<>(BarcodeFormat.class);
+        for (Map.Entry<BarcodeFormat, Histogram> entry : reads.entrySet()) {
+            Timing timing = entry.getValue().toTiming();
+            if (timing.getCount() > 0) {
+                readTimings.put(entry.getKey(), timing);
+            }
+        }
+        long[] decodedByBinarization = new long[decodedBy.length];
+        for (int i = 0; i < decodedBy.length; i++) {
+            decodedByBinarization[i] = decodedBy[i].get();
+        }
+        return new Snapshot(System.nanoTime() - startNanos,
+                frames.get(),
+                decoded.get(),
+                missed.get(),
+                dropped.get(),
+                rejected.get(),
+                decodedByBinarization,
+                decodedDownscaled.get(),
+                decodedFused.get(),
+                unconfirmed.get(),
+                reducedPasses.get(),
+                stageTimings,
+                readTimings);
+    }
+
+    private void maybeReport() {
+        Listener theListener = listener;
+        if (theListener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastReportNanos.get();
+        if (now - last >= reportIntervalNanos && lastReportNanos.compareAndSet(last, now)) {
+            theListener.onMetrics(snapshot());
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        return nanos <= 0L ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Counts of nanosecond values in power of two buckets: bucket i holds values below 2^i.
+     */
+    private static final class Histogram {
+        private final long[] buckets = new long[BUCKETS + 1];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        synchronized void record(long nanos) {
+            buckets[bucketOf(nanos)]++;
+            count++;
+            sum += nanos;
+            if (nanos < min) {
+                min = nanos;
+            }
+            if (nanos > max) {
+                max = nanos;
+            }
+        }
+
+        synchronized Timing toTiming() {
+            return new Timing(count, sum, count == 0 ? 0L : min, max, buckets.clone());
+        }
+    }
+
+    /**
+     * An immutable copy of one histogram.
+     */
+    public static final class Timing implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long count;
+        private final long sumNanos;
+        private final long minNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        Timing(long count, long sumNanos, long minNanos, long maxNanos, long[] buckets) {
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0L : sumNanos / count;
+        }
+
+        public long getMinNanos() {
+            return minNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound of the percentile, precise to a factor of two
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return i == 0 ? 0L : Math.min(maxNanos, (1L << i) - 1);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * @return the raw bucket counts; bucket i holds values below 2^i nanoseconds
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count +
+                    " mean=" + getMeanNanos() / 1000 + "us" +
+                    " p50<=" + getPercentileNanos(50) / 1000 + "us" +
+                    " p99<=" + getPercentileNanos(99) / 1000 + "us" +
+                    " max=" + maxNanos / 1000 + "us";
+        }
+    }
+
+    /**
+     * An immutable copy of all metrics at one point in time.
+     */
+    public static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long elapsedNanos;
+        private final long frames;
+        private final long decoded;
+        private final long missed;
+        private final long dropped;
+        private final long rejected;
+        private final long[] decodedBy;
+        private final long decodedDownscaled;
+        private final long decodedFused;
+        private final long unconfirmed;
+        private final long reducedPasses;
+        private final Map<Stage, Timing> stageTimings;
+        private final Map<BarcodeFormat, Timing> readTimings;
+
+        Snapshot(long elapsedNanos,
+                 long frames,
+                 long decoded,
+                 long missed,
+                 long dropped,
+                 long rejected,
+                 long[] decodedBy,
+                 long decodedDownscaled,
+                 long decodedFused,
+                 long unconfirmed,
+                 long reducedPasses,
+                 Map<Stage, Timing> stageTimings,
+                 Map<BarcodeFormat, Timing> readTimings) {
+            this.elapsedNanos = elapsedNanos;
+            this.frames = frames;
+            this.decoded = decoded;
+            this.missed = missed;
+            this.dropped = dropped;
+            this.rejected = rejected;
+            this.decodedBy = decodedBy;
+            this.decodedDownscaled = decodedDownscaled;
+            this.decodedFused = decodedFused;
+            this.unconfirmed = unconfirmed;
+            this.reducedPasses = reducedPasses;
+            this.stageTimings = stageTimings;
+            this.readTimings = readTimings;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return frames which reached a decode worker
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getDecoded() {
+            return decoded;
+        }
+
+        public long getMissed() {
+            return missed;
+        }
+
+        /**
+         * @return frames captured but never decoded: unrequested, replaced by a newer frame, or stale
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return frames which reached a decode worker but were too blurry or too dark to decode
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return frames decoded by a pass with the binarizer, of those whose binarizer is known
+         */
+        public long getDecodedBy(Binarization binarization) {
+            return decodedBy[binarization.ordinal()];
+        }
+
+        /**
+         * @return frames decoded by the pass at half resolution
+         */
+        public long getDecodedDownscaled() {
+            return decodedDownscaled;
+        }
+
+        /**
+         * @return frames decoded only from the average of the frames before them
+         */
+        public long getDecodedFused() {
+            return decodedFused;
+        }
+
+        /**
+         * @return results held back until more frames agreed on them
+         */
+        public long getUnconfirmed() {
+            return unconfirmed;
+        }
+
+        /**
+         * @return frames tried with the cheapest pass only, after a run of frames without a code
+         */
+        public long getReducedPasses() {
+            return reducedPasses;
+        }
+
+        public double getFramesPerSecond() {
+            return elapsedNanos == 0L ? 0.0 : frames * 1.0e9 / elapsedNanos;
+        }
+
+        public double getMissRate() {
+            long attempted = decoded + missed;
+            return attempted == 0L ? 0.0 : missed / (double) attempted;
+        }
+
+        public Timing getTiming(Stage stage) {
+            return stageTimings.get(stage);
+        }
+
+        /**
+         * @return reader time of frames which decoded, by the format found
+         */
+        public Map<BarcodeFormat, Timing> getReadTimings() {
+            return Collections.unmodifiableMap(readTimings);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append("frames=").append(frames)
+                    .append(" fps=").append(String.format("%.1f", getFramesPerSecond()))
+                    .append(" decoded=").append(decoded)
+                    .append(" missRate=").append(String.format("%.3f", getMissRate()))
+                    .append(" dropped=").append(dropped)
+                    .append(" rejected=").append(rejected);
+            for (Binarization binarization : Binarization.values()) {
+                result.append(' ').append(binarization).append('=')
+                        .append(decodedBy[binarization.ordinal()]);
+            }
+            result.append(" downscaled=").append(decodedDownscaled);
+            result.append(" fused=").append(decodedFused);
+            result.append(" unconfirmed=").append(unconfirmed);
+            result.append(" reduced=").append(reducedPasses);
+            for (Map.Entry<Stage, Timing> entry : stageTimings.entrySet()) {
+                result.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            for (Map.Entry<BarcodeFormat, Timing> entry : readTimings.entrySet()) {
+                result.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            return result.toString();
+        }
+    }
+}
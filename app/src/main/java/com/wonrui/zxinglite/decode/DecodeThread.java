@@ -16,35 +16,38 @@ import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 /**
- * This thread does all the heavy lifting of decoding the images.
+ * This thread does all the heavy lifting of decoding the images. Several of them may run side by
+ * side in a {@link DecodeWorkerPool}, each with its own reader.
  */
 public class DecodeThread extends Thread {
-    public static final String BARCODE_BITMAP = "barcode_bitmap";
-    public static final String BARCODE_SCALED_FACTOR = "barcode_scaled_factor";
-
     public static final int ALL_MODE = 0X300;
 
     private final CaptureActivity activity;
+    private final DecodeWorkerPool pool;
+    private final int index;
     private final Map<DecodeHintType, Object> hints;
     private Handler handler;
     private final CountDownLatch handlerInitLatch;
 
-    public DecodeThread(CaptureActivity activity,
-                        int decodeMode,
-                        ResultPointCallback resultPointCallback) {
+    DecodeThread(CaptureActivity activity,
+                 DecodeWorkerPool pool,
+                 int index,
+                 Map<DecodeHintType, Object> hints) {
+        super("DecodeThread-" + index);
         this.activity = activity;
+        this.pool = pool;
+        this.index = index;
+        this.hints = hints;
         handlerInitLatch = new CountDownLatch(1);
+    }
 
-        hints = new EnumMap<>(DecodeHintType.class);
+    static Map<DecodeHintType, Object> buildHints(int decodeMode,
+                                                  ResultPointCallback resultPointCallback) {
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
         Collection<BarcodeFormat> decodeFormats = new ArrayList<BarcodeFormat>();
         switch (decodeMode) {
             case ALL_MODE:
-                decodeFormats.addAll(DecodeFormatManager.PRODUCT_FORMATS);
-                decodeFormats.addAll(DecodeFormatManager.INDUSTRIAL_FORMATS);
-                decodeFormats.addAll(DecodeFormatManager.QR_CODE_FORMATS);
-                decodeFormats.addAll(DecodeFormatManager.DATA_MATRIX_FORMATS);
-                decodeFormats.addAll(DecodeFormatManager.AZTEC_FORMATS);
-                decodeFormats.addAll(DecodeFormatManager.PDF417_FORMATS);
+                decodeFormats.addAll(DecodeFormatManager.ALL_FORMATS);
                 break;
             default:
         }
@@ -52,6 +55,7 @@ public class DecodeThread extends Thread {
         hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK,
                 resultPointCallback);
         Log.i("DecodeThread", "Hints: " + hints);
+        return hints;
     }
 
     public Handler getHandler() {
@@ -66,7 +70,7 @@ public class DecodeThread extends Thread {
     @Override
     public void run() {
         Looper.prepare();
-        handler = new DecodeHandler(activity, hints);
+        handler = new DecodeHandler(activity, pool, index, hints);
         handlerInitLatch.countDown();
         Looper.loop();
     }
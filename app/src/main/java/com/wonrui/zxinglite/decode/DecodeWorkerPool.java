@@ -0,0 +1,261 @@
+package com.wonrui.zxinglite.decode;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Message;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.wonrui.zxinglite.CaptureActivity;
+import com.wonrui.zxinglite.R;
+import com.wonrui.zxinglite.camera.FrameRecorder;
+import com.wonrui.zxinglite.camera.FrameSource;
+import com.wonrui.zxinglite.preferences.Config;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.ResultPointCallback;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A fixed set of {@link DecodeThread}s, each with its own {@link DecodeHandler} and reader, so that
+ * several preview frames are decoded at once and decodes per second scale with the core count.
+ * Workers are addressed by index, which they report back in arg1 of their result messages.
+ * <p>
+ * 解码线程池，每个线程拥有独立的解码器，多核设备上可以同时解码多帧
+ */
+public final class DecodeWorkerPool {
+    private static final String TAG = DecodeWorkerPool.class.getSimpleName();
+
+    private static final int MAX_DEFAULT_WORKERS = 8;
+
+    private final DecodeThread[] workers;
+    private final FrameSource frameSource;
+    private final AdaptiveFormatScheduler formatScheduler;
+    private final ParallelFamilyDecoder familyDecoder;
+    private final DecodeMetrics metrics = new DecodeMetrics();
+    private final ThumbnailPool thumbnailPool;
+    private final boolean multiple;
+    private final RoiTracker roiTracker;
+    private final boolean qualityFiltered;
+    private final BinarizerStrategy binarizerStrategy;
+    private final boolean pyramid;
+    private final FrameFusion frameFusion;
+    private final ResultConsensus resultConsensus;
+    private final FrameRecorder frameRecorder;
+    /**
+     * Cleared once a result has been accepted, so that frames still queued are skipped
+     */
+    private volatile boolean decoding = true;
+
+    public DecodeWorkerPool(CaptureActivity activity,
+                            FrameSource frameSource,
+                            int decodeMode,
+                            ResultPointCallback resultPointCallback,
+                            int workerCount,
+                            boolean thumbnails,
+                            boolean multiple) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Bad worker count: " + workerCount);
+        }
+        this.frameSource = frameSource;
+        Map<DecodeHintType, Object> hints = DecodeThread.buildHints(decodeMode, resultPointCallback);
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> decodeFormats =
+                (Collection<BarcodeFormat>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+        if (prefs.getBoolean(Config.KEY_ADAPTIVE_FORMATS, true) && decodeFormats.size() > 1) {
+            formatScheduler = AdaptiveFormatScheduler.forFormats(decodeFormats);
+        } else {
+            formatScheduler = null;
+        }
+        if (prefs.getBoolean(Config.KEY_PARALLEL_FAMILIES, false) && !decodeFormats.isEmpty()) {
+            familyDecoder = new ParallelFamilyDecoder(hints, Runtime.getRuntime().availableProcessors());
+            // Each worker keeps a thread per family busy, so more would only queue up
+            workerCount = Math.min(workerCount, familyDecoder.getMaxDecoders());
+        } else {
+            familyDecoder = null;
+        }
+        thumbnailPool = thumbnails ? new ThumbnailPool(workerCount) : null;
+        this.multiple = multiple;
+        // Looking for every code in the frame, there is no single one to track
+        if (prefs.getBoolean(Config.KEY_ROI_TRACKING, true) && !multiple && familyDecoder == null) {
+            roiTracker = new RoiTracker();
+        } else {
+            roiTracker = null;
+        }
+        qualityFiltered = prefs.getBoolean(Config.KEY_QUALITY_FILTER, true);
+        binarizerStrategy = BinarizerStrategy.parse(prefs.getString(Config.KEY_BINARIZER, null));
+        pyramid = prefs.getBoolean(Config.KEY_PYRAMID_DECODE, true);
+        frameFusion = prefs.getBoolean(Config.KEY_FRAME_FUSION, false) ? new FrameFusion() : null;
+        // In multiple mode every code found is reported, confirmed or not
+        resultConsensus = multiple ? null :
+                ResultConsensus.parse(prefs.getString(Config.KEY_RESULT_CONFIRMATION, null));
+        frameRecorder = activity.getFrameRecorder();
+        workers = new DecodeThread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new DecodeThread(activity, this, i, hints);
+        }
+        Log.i(TAG, "Decode workers: " + workerCount);
+    }
+
+    /**
+     * @return one worker per core, keeping a core free for the UI and camera threads
+     */
+    public static int defaultWorkerCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, MAX_DEFAULT_WORKERS));
+    }
+
+    public void start() {
+        for (DecodeThread worker : workers) {
+            worker.start();
+        }
+    }
+
+    public int size() {
+        return workers.length;
+    }
+
+    public Handler getHandler(int index) {
+        return workers[index].getHandler();
+    }
+
+    /**
+     * @return where the frames decoded by the workers come from
+     */
+    FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    /**
+     * @return the scheduler shared by all workers, or null to always try every format
+     */
+    AdaptiveFormatScheduler getFormatScheduler() {
+        return formatScheduler;
+    }
+
+    /**
+     * @return the decoder running format families side by side, or null to decode each frame
+     * with a single reader
+     */
+    ParallelFamilyDecoder getFamilyDecoder() {
+        return familyDecoder;
+    }
+
+    /**
+     * @return the tracker of where the code is expected, or null to always decode the whole
+     * framing rect
+     */
+    RoiTracker getRoiTracker() {
+        return roiTracker;
+    }
+
+    BinarizerStrategy getBinarizerStrategy() {
+        return binarizerStrategy;
+    }
+
+    /**
+     * @return the confirmation of results across the workers' frames, or null to accept every
+     * result right away
+     */
+    ResultConsensus getResultConsensus() {
+        return resultConsensus;
+    }
+
+    /**
+     * @return the average of consecutive frames which did not decode, across the workers, or
+     * null not to decode such an average
+     */
+    FrameFusion getFrameFusion() {
+        return frameFusion;
+    }
+
+    /**
+     * @return true to decode large frames at half resolution before full resolution
+     */
+    boolean isPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * @return true to skip frames too blurry or too dark to decode
+     */
+    boolean isQualityFiltered() {
+        return qualityFiltered;
+    }
+
+    /**
+     * @return the thumbnails of decoded frames, or null if the caller does not want them
+     */
+    ThumbnailPool getThumbnailPool() {
+        return thumbnailPool;
+    }
+
+    /**
+     * @return where the workers record each frame before decoding it, or null
+     */
+    FrameRecorder getFrameRecorder() {
+        return frameRecorder;
+    }
+
+    /**
+     * @return the latency and throughput metrics of all workers
+     */
+    public DecodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true to find every code in a frame, rather than the first one
+     */
+    boolean isMultiple() {
+        return multiple;
+    }
+
+    boolean isDecoding() {
+        return decoding;
+    }
+
+    /**
+     * @param decoding false to skip the frames still queued for the workers, true to decode again
+     */
+    public void setDecoding(boolean decoding) {
+        if (decoding && resultConsensus != null) {
+            // Votes from the previous scan must not confirm a result of this one
+            resultConsensus.reset();
+        }
+        if (decoding && frameFusion != null) {
+            // Nor may frames of the previous scan be averaged with those of this one
+            frameFusion.reset();
+        }
+        this.decoding = decoding;
+    }
+
+    /**
+     * Asks every worker to quit and waits for them, sharing the timeout between all of them.
+     */
+    public void quitSynchronously(long timeoutMs) {
+        decoding = false;
+        for (DecodeThread worker : workers) {
+            Message quit = Message.obtain(worker.getHandler(), R.id.quit);
+            quit.sendToTarget();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            for (DecodeThread worker : workers) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    break;
+                }
+                worker.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            // continue
+        }
+        if (familyDecoder != null) {
+            familyDecoder.shutdown();
+        }
+    }
+}
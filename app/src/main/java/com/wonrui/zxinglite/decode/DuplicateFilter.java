@@ -0,0 +1,65 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.Result;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Suppresses repeated reports of the same code in bulk scanning. A code, identified by its text and
+ * format, counts as new only once it has not been seen for a while: every sighting restarts the
+ * window, so a label held in front of the camera is reported once, however long it stays there.
+ * Only the most recently seen codes are remembered.
+ * <p>
+ * Only used from the UI thread, so not thread-safe.
+ * <p>
+ * 连续扫描时过滤重复结果：同一条码在时间窗口内只上报一次
+ */
+public final class DuplicateFilter {
+    public static final long DEFAULT_WINDOW_MS = 1500L;
+    /**
+     * Pass as window to report each code only once, for as long as it is remembered
+     */
+    public static final long FOREVER = -1L;
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final long windowMs;
+    private final Map<String, Long> lastSeen;
+
+    /**
+     * @param windowMs how long a code must be out of sight to be reported again, or {@link #FOREVER}
+     */
+    public DuplicateFilter(long windowMs) {
+        this(windowMs, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param windowMs how long a code must be out of sight to be reported again, or {@link #FOREVER}
+     * @param capacity how many codes to remember
+     */
+    public DuplicateFilter(long windowMs, final int capacity) {
+        this.windowMs = windowMs;
+        lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param result a decoded code
+     * @param nowMs  the current time, on a monotonic clock
+     * @return true if the code is new and should be reported
+     */
+    public boolean accept(Result result, long nowMs) {
+        String key = result.getBarcodeFormat().name() + ':' + result.getText();
+        Long seen = lastSeen.put(key, nowMs);
+        return seen == null || (windowMs != FOREVER && nowMs - seen >= windowMs);
+    }
+
+    public void clear() {
+        lastSeen.clear();
+    }
+}
@@ -0,0 +1,590 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The decode hot path of one worker, from luminance source to result: format scheduling,
+ * binarization and the readers, with the time of each recorded in {@link DecodeMetrics}. With a
+ * {@link RoiTracker}, the window where the code is expected is decoded before the whole source,
+ * and in pyramid mode, large sources are decoded at half resolution before full resolution. In
+ * fusion mode, frames which did not decode are averaged by a {@link FrameFusion} and the average
+ * is decoded for 1D codes.
+ * The {@link BinarizerStrategy} picks the binarizer of each pass, and a {@link BinarizerArena}
+ * keeps its buffers across frames. It has no Android dependencies, so the same code runs in the
+ * JVM benchmark.
+ * <p>
+ * Not thread-safe: each worker has its own, while the scheduler, family decoder, metrics, ROI
+ * tracker and frame fusion may be shared.
+ * <p>
+ * 单个解码线程的核心解码流程，不依赖Android，可直接在JVM上做基准测试
+ */
+final class FrameDecoder {
+    private final Map<DecodeHintType, Object> hints;
+    private final AdaptiveFormatScheduler formatScheduler;
+    private final ParallelFamilyDecoder familyDecoder;
+    private final DecodeMetrics metrics;
+    private final RoiTracker roiTracker;
+    private final BinarizerStrategy binarizerStrategy;
+    private final boolean pyramid;
+    /**
+     * Moves the points reported while decoding a window or a downscaled source back into the
+     * whole source
+     */
+    private final TransformingResultPointCallback pointCallback;
+    private final int[] window = new int[4];
+    private final BinarizerArena binarizerArena = new BinarizerArena();
+    /**
+     * Binarization time of the reader attempts on the current frame
+     */
+    private long attemptBinarizeNanos;
+    /**
+     * Reader for the 2D formats only, retried with the hybrid binarizer after a global histogram
+     * pass. The 1D readers only read single rows, which both binarizers threshold the same way.
+     */
+    private final MultiFormatReader matrixReader;
+    private Set<BarcodeFormat> matrixReaderSourceFormats;
+    private boolean matrixReaderConfigured;
+    private boolean matrixReaderEmpty;
+    /**
+     * Attempts in a row where only the hybrid pass decoded
+     */
+    private int globalLosses;
+    /**
+     * Attempts left which skip the global histogram pass, since the lighting looks uneven
+     */
+    private int hybridOnlyAttempts;
+    /**
+     * The downscaled source of the previous frame, whose buffers are reused
+     */
+    private ScaledLuminanceSource scaledSource;
+    /**
+     * Attempts in a row where only the full resolution pass decoded
+     */
+    private int pyramidLosses;
+    /**
+     * Attempts left which skip the downscaled pass, since the codes look too small for it
+     */
+    private int fullResolutionOnlyAttempts;
+    /**
+     * Frames in a row without a result
+     */
+    private int missStreak;
+    /**
+     * True while the current frame only gets the cheapest pass
+     */
+    private boolean reducedPasses;
+    /**
+     * Averages the frames which did not decode, or null if not in fusion mode
+     */
+    private final FrameFusion frameFusion;
+    /**
+     * This worker's copy of the average, decoded outside the lock of the shared fusion
+     */
+    private final FrameFusion.Average fusedAverage = new FrameFusion.Average();
+    /**
+     * Reader for the 1D formats only, which decodes the average of the frames
+     */
+    private final MultiFormatReader fusionReader;
+    private final MultiFormatReader multiFormatReader;
+    /**
+     * Reader restricted to the formats learned by the {@link AdaptiveFormatScheduler}
+     */
+    private final MultiFormatReader preferredReader;
+    private Set<BarcodeFormat> preferredReaderFormats;
+    /**
+     * Readers finding every code in a frame, created on first use
+     */
+    private QRCodeMultiReader qrCodeMultiReader;
+    private MultiFormatReader otherReader;
+    private GenericMultipleBarcodeReader otherMultiReader;
+    private boolean multiReadersCreated;
+
+    /**
+     * After this many attempts in a row where only the hybrid pass decoded, the global histogram
+     * pass is skipped for {@link #HYBRID_ONLY_ATTEMPTS} attempts
+     */
+    private static final int MAX_GLOBAL_LOSSES = 3;
+    private static final int HYBRID_ONLY_ATTEMPTS = 30;
+    /**
+     * Sources narrower or shorter than this are decoded at full resolution only
+     */
+    private static final int MIN_PYRAMID_SIZE = 360;
+    /**
+     * After this many attempts in a row where only the full resolution pass decoded, the
+     * downscaled pass is skipped for {@link #FULL_RESOLUTION_ONLY_ATTEMPTS} attempts
+     */
+    private static final int MAX_PYRAMID_LOSSES = 3;
+    private static final int FULL_RESOLUTION_ONLY_ATTEMPTS = 30;
+    /**
+     * After this many frames in a row without a result, as while aiming, most frames skip the
+     * half resolution pass and the hybrid retry, and only get the full resolution pass with the
+     * first binarizer. The skip counters above only learn from passes which decoded, so without
+     * this every empty frame would get every pass.
+     */
+    private static final int MAX_MISS_STREAK = 5;
+    /**
+     * While skipping, every this many frames still get all passes, for codes only those find
+     */
+    private static final int FULL_PASSES_INTERVAL = 4;
+
+    /**
+     * @param hints           the decode hints, with all formats to decode
+     * @param formatScheduler narrows the formats tried per frame, or null to try them all
+     * @param familyDecoder   decodes format families side by side, or null to use one reader
+     * @param metrics         where stage timings go
+     * @param roiTracker      predicts the window to decode first, or null to always decode the
+     *                        whole source. Not used with a family decoder, whose readers report
+     *                        possible result points without knowing about the window.
+     * @param binarizerStrategy how the single reader path binarizes
+     * @param pyramid         true to decode large sources at half resolution first. Not used with
+     *                        a family decoder either.
+     * @param frameFusion     averages the last frames which did not decode, to decode the average
+     *                        if any 1D formats are decoded, or null not to
+     */
+    FrameDecoder(Map<DecodeHintType, Object> hints,
+                 AdaptiveFormatScheduler formatScheduler,
+                 ParallelFamilyDecoder familyDecoder,
+                 DecodeMetrics metrics,
+                 RoiTracker roiTracker,
+                 BinarizerStrategy binarizerStrategy,
+                 boolean pyramid,
+                 FrameFusion frameFusion) {
+        this.formatScheduler = formatScheduler;
+        this.familyDecoder = familyDecoder;
+        this.metrics = metrics;
+        this.roiTracker = familyDecoder == null ? roiTracker : null;
+        this.pyramid = familyDecoder == null && pyramid;
+        if (this.roiTracker != null || this.pyramid) {
+            pointCallback = new TransformingResultPointCallback(
+                    (ResultPointCallback) hints.get(DecodeHintType.NEED_RESULT_POINT_CALLBACK),
+                    this.roiTracker);
+            hints = new EnumMap<>(hints);
+            hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, pointCallback);
+        } else {
+            pointCallback = null;
+        }
+        this.hints = hints;
+        this.binarizerStrategy = binarizerStrategy;
+        matrixReader = binarizerStrategy == BinarizerStrategy.GLOBAL_FIRST ?
+                new MultiFormatReader() : null;
+        multiFormatReader = new MultiFormatReader();
+        multiFormatReader.setHints(hints);
+        preferredReader = new MultiFormatReader();
+
+        Set<BarcodeFormat> fusionFormats = EnumSet.noneOf(BarcodeFormat.class);
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> decodeFormats =
+                (Collection<BarcodeFormat>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+        if (frameFusion != null && decodeFormats != null) {
+            fusionFormats.addAll(decodeFormats);
+            fusionFormats.retainAll(DecodeFormatManager.ONE_D_FORMATS);
+        }
+        if (fusionFormats.isEmpty()) {
+            this.frameFusion = null;
+            fusionReader = null;
+        } else {
+            this.frameFusion = frameFusion;
+            Map<DecodeHintType, Object> fusionHints = new EnumMap<>(hints);
+            fusionHints.put(DecodeHintType.POSSIBLE_FORMATS, fusionFormats);
+            fusionReader = new MultiFormatReader();
+            fusionReader.setHints(fusionHints);
+        }
+    }
+
+    /**
+     * @param source the luminance source of the frame
+     * @return the result, or null if nothing decoded
+     */
+    Result decode(LuminanceSource source) {
+        long start = System.nanoTime();
+        Set<BarcodeFormat> formats = formatScheduler == null ? null : formatScheduler.nextFormats();
+        Result rawResult = null;
+        long binarizeNanos = 0L;
+        if (familyDecoder != null) {
+            // Families binarize on their own threads, so that time counts as reader time here
+            rawResult = familyDecoder.decode(source, formats);
+        } else {
+            attemptBinarizeNanos = 0L;
+            reducedPasses = missStreak >= MAX_MISS_STREAK && missStreak % FULL_PASSES_INTERVAL != 0;
+            if (reducedPasses) {
+                metrics.recordReducedPasses();
+            }
+            if (roiTracker != null && roiTracker.predict(source.getWidth(), source.getHeight(), window)) {
+                int left = window[0];
+                int top = window[1];
+                pointCallback.setTransform(1, left, top);
+                rawResult = decodeWithReader(source.crop(left, top, window[2], window[3]),
+                        formats);
+                pointCallback.setTransform(1, 0, 0);
+                if (rawResult != null) {
+                    rawResult = transform(rawResult, 1, left, top);
+                }
+            }
+            boolean downscaled = false;
+            if (rawResult == null && pyramid && !reducedPasses &&
+                    Math.min(source.getWidth(), source.getHeight()) >= MIN_PYRAMID_SIZE) {
+                if (fullResolutionOnlyAttempts > 0) {
+                    fullResolutionOnlyAttempts--;
+                } else {
+                    rawResult = decodeDownscaled(source, formats);
+                    downscaled = true;
+                }
+            }
+            if (rawResult == null) {
+                // Missed in the window or at half resolution, or neither was tried
+                rawResult = decodeWithReader(source, formats);
+                if (rawResult != null && downscaled && ++pyramidLosses >= MAX_PYRAMID_LOSSES) {
+                    pyramidLosses = 0;
+                    fullResolutionOnlyAttempts = FULL_RESOLUTION_ONLY_ATTEMPTS;
+                }
+            }
+            binarizeNanos = attemptBinarizeNanos;
+            metrics.record(DecodeMetrics.Stage.BINARIZE, binarizeNanos);
+            if (roiTracker != null) {
+                if (rawResult != null) {
+                    roiTracker.onDecoded(rawResult.getResultPoints());
+                } else {
+                    roiTracker.onMissed();
+                }
+            }
+        }
+        long fusionNanos = 0L;
+        if (frameFusion != null) {
+            if (rawResult == null) {
+                long fusionStart = System.nanoTime();
+                rawResult = decodeFused(source);
+                fusionNanos = System.nanoTime() - fusionStart;
+                metrics.record(DecodeMetrics.Stage.FUSION, fusionNanos);
+            } else {
+                frameFusion.reset();
+            }
+        }
+        missStreak = rawResult == null ? missStreak + 1 : 0;
+        long readNanos = System.nanoTime() - start - binarizeNanos - fusionNanos;
+        if (rawResult != null) {
+            metrics.recordDecoded(rawResult.getBarcodeFormat(), readNanos);
+        } else {
+            metrics.recordMissed(readNanos);
+        }
+        if (formatScheduler != null) {
+            if (rawResult != null) {
+                formatScheduler.onDecoded(rawResult.getBarcodeFormat());
+            } else {
+                formatScheduler.onMissed(formats);
+            }
+        }
+        return rawResult;
+    }
+
+    private Result decodeDownscaled(LuminanceSource source, Set<BarcodeFormat> formats) {
+        long start = System.nanoTime();
+        scaledSource = ScaledLuminanceSource.halve(source, scaledSource);
+        metrics.record(DecodeMetrics.Stage.DOWNSCALE, System.nanoTime() - start);
+        int scale = ScaledLuminanceSource.SCALE;
+        pointCallback.setTransform(scale, 0, 0);
+        Result result = decodeWithReader(scaledSource, formats);
+        pointCallback.setTransform(1, 0, 0);
+        if (result == null) {
+            return null;
+        }
+        pyramidLosses = 0;
+        metrics.recordDecodedDownscaled();
+        return transform(result, scale, 0, 0);
+    }
+
+    /**
+     * Adds the frame to the average, and decodes the average once enough frames agree.
+     */
+    private Result decodeFused(LuminanceSource source) {
+        if (!frameFusion.add(source, fusedAverage)) {
+            return null;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        LuminanceSource fused = new PlanarYUVLuminanceSource(fusedAverage.luminances,
+                width, height, 0, 0, width, height, false);
+        BinaryBitmap bitmap = new BinaryBitmap(binarizerArena.globalHistogram(fused));
+        try {
+            Result result = fusionReader.decodeWithState(bitmap);
+            if (!frameFusion.claim(fusedAverage)) {
+                // Another worker's copy of the same frames decoded first, one vote is enough
+                return null;
+            }
+            metrics.recordDecodedFused();
+            return result;
+        } catch (ReaderException re) {
+            return null;
+        } finally {
+            fusionReader.reset();
+        }
+    }
+
+    /**
+     * One attempt with a single reader, in one or two passes depending on the
+     * {@link BinarizerStrategy}, adding their binarization time to {@link #attemptBinarizeNanos}.
+     */
+    private Result decodeWithReader(LuminanceSource source, Set<BarcodeFormat> formats) {
+        Result result;
+        if (binarizerStrategy == BinarizerStrategy.GLOBAL_FIRST && hybridOnlyAttempts == 0) {
+            result = decodePass(readerFor(formats), binarizerArena.globalHistogram(source));
+            if (result != null) {
+                globalLosses = 0;
+                metrics.recordBinarization(DecodeMetrics.Binarization.GLOBAL_HISTOGRAM);
+                return result;
+            }
+            MultiFormatReader reader = reducedPasses ? null : matrixReaderFor(formats);
+            if (reader == null) {
+                return null;
+            }
+            result = decodePass(reader, binarizerArena.hybrid(source));
+            if (result != null && ++globalLosses >= MAX_GLOBAL_LOSSES) {
+                globalLosses = 0;
+                hybridOnlyAttempts = HYBRID_ONLY_ATTEMPTS;
+            }
+        } else {
+            if (hybridOnlyAttempts > 0) {
+                hybridOnlyAttempts--;
+            }
+            result = decodePass(readerFor(formats), binarizerArena.hybrid(source));
+        }
+        if (result != null) {
+            metrics.recordBinarization(DecodeMetrics.Binarization.HYBRID);
+        }
+        return result;
+    }
+
+    private Result decodePass(MultiFormatReader reader, Binarizer binarizer) {
+        TimingBinarizer timingBinarizer = new TimingBinarizer(binarizer);
+        BinaryBitmap bitmap = new BinaryBitmap(timingBinarizer);
+        try {
+            return reader.decodeWithState(bitmap);
+        } catch (ReaderException re) {
+            return null;
+        } finally {
+            reader.reset();
+            attemptBinarizeNanos += timingBinarizer.getNanos();
+        }
+    }
+
+    /**
+     * @param formats the formats to try, or null for all of them
+     * @return a reader set up for the 2D formats among them, or null if there are none
+     */
+    private MultiFormatReader matrixReaderFor(Set<BarcodeFormat> formats) {
+        if (!matrixReaderConfigured || formats != matrixReaderSourceFormats) {
+            Set<BarcodeFormat> matrixFormats = EnumSet.noneOf(BarcodeFormat.class);
+            if (formats != null) {
+                matrixFormats.addAll(formats);
+            } else {
+                @SuppressWarnings("unchecked")
+                Collection<BarcodeFormat> decodeFormats =
+                        (Collection<BarcodeFormat>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+                if (decodeFormats != null) {
+                    matrixFormats.addAll(decodeFormats);
+                }
+            }
+            matrixFormats.removeAll(DecodeFormatManager.ONE_D_FORMATS);
+            matrixReaderEmpty = matrixFormats.isEmpty();
+            if (!matrixReaderEmpty) {
+                Map<DecodeHintType, Object> matrixHints = new EnumMap<>(hints);
+                matrixHints.put(DecodeHintType.POSSIBLE_FORMATS, matrixFormats);
+                matrixReader.setHints(matrixHints);
+            }
+            matrixReaderSourceFormats = formats;
+            matrixReaderConfigured = true;
+        }
+        return matrixReaderEmpty ? null : matrixReader;
+    }
+
+    /**
+     * @return the result with its points scaled up and moved by the offset of the window or
+     * downscaled source it was decoded in
+     */
+    private static Result transform(Result result, int scale, int left, int top) {
+        ResultPoint[] points = result.getResultPoints();
+        ResultPoint[] translated = null;
+        if (points != null) {
+            translated = new ResultPoint[points.length];
+            for (int i = 0; i < points.length; i++) {
+                ResultPoint point = points[i];
+                translated[i] = point == null ? null :
+                        new ResultPoint(point.getX() * scale + left, point.getY() * scale + top);
+            }
+        }
+        Result moved = new Result(result.getText(), result.getRawBytes(), result.getNumBits(),
+                translated, result.getBarcodeFormat(), result.getTimestamp());
+        moved.putAllMetadata(result.getResultMetadata());
+        return moved;
+    }
+
+    /**
+     * Finds every code in the frame in one pass. QR codes are located together by their finder
+     * patterns, other formats by decoding, masking out what was found and searching the rest.
+     * Both work on the same binarized image. Format scheduling and family decoding do not apply
+     * here, since a narrowed format set would miss the other codes on a label.
+     *
+     * @param source the luminance source of the frame
+     * @return the results, empty if nothing decoded
+     */
+    Result[] decodeMultiple(LuminanceSource source) {
+        createMultiReaders();
+        long start = System.nanoTime();
+        TimingBinarizer binarizer = new TimingBinarizer(binarizerArena.hybrid(source));
+        BinaryBitmap bitmap = new BinaryBitmap(binarizer);
+        List<Result> results = new ArrayList<>();
+        if (qrCodeMultiReader != null) {
+            try {
+                Collections.addAll(results, qrCodeMultiReader.decodeMultiple(bitmap, hints));
+            } catch (ReaderException re) {
+                // continue
+            }
+        }
+        if (otherMultiReader != null) {
+            try {
+                Collections.addAll(results, otherMultiReader.decodeMultiple(bitmap, hints));
+            } catch (ReaderException re) {
+                // continue
+            } finally {
+                otherReader.reset();
+            }
+        }
+        long binarizeNanos = binarizer.getNanos();
+        metrics.record(DecodeMetrics.Stage.BINARIZE, binarizeNanos);
+        long readNanos = System.nanoTime() - start - binarizeNanos;
+        if (results.isEmpty()) {
+            metrics.recordMissed(readNanos);
+        } else {
+            // Counted as one decoded frame, under the format of the first code
+            metrics.recordDecoded(results.get(0).getBarcodeFormat(), readNanos);
+        }
+        return results.toArray(new Result[results.size()]);
+    }
+
+    private void createMultiReaders() {
+        if (multiReadersCreated) {
+            return;
+        }
+        multiReadersCreated = true;
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> decodeFormats =
+                (Collection<BarcodeFormat>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+        Set<BarcodeFormat> otherFormats = EnumSet.noneOf(BarcodeFormat.class);
+        if (decodeFormats != null) {
+            otherFormats.addAll(decodeFormats);
+        }
+        if (otherFormats.remove(BarcodeFormat.QR_CODE)) {
+            qrCodeMultiReader = new QRCodeMultiReader();
+        }
+        if (!otherFormats.isEmpty()) {
+            Map<DecodeHintType, Object> otherHints = new EnumMap<>(hints);
+            otherHints.put(DecodeHintType.POSSIBLE_FORMATS, otherFormats);
+            otherReader = new MultiFormatReader();
+            otherReader.setHints(otherHints);
+            otherMultiReader = new GenericMultipleBarcodeReader(new StatefulReader(otherReader));
+        }
+    }
+
+    /**
+     * @param formats the formats to try, or null for all of them
+     * @return a reader set up for the formats, only re-configured when they change
+     */
+    private MultiFormatReader readerFor(Set<BarcodeFormat> formats) {
+        if (formats == null || formats == formatScheduler.getAllFormats()) {
+            return multiFormatReader;
+        }
+        if (formats != preferredReaderFormats) {
+            Map<DecodeHintType, Object> preferredHints = new EnumMap<>(hints);
+            preferredHints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+            preferredReader.setHints(preferredHints);
+            preferredReaderFormats = formats;
+        }
+        return preferredReader;
+    }
+
+    /**
+     * Forwards possible result points to the original callback and the {@link RoiTracker}, if
+     * any, in the coordinates of the whole source while a window of it or a downscaled copy is
+     * decoded.
+     */
+    private static final class TransformingResultPointCallback implements ResultPointCallback {
+        private final ResultPointCallback delegate;
+        private final RoiTracker roiTracker;
+        private int scale = 1;
+        private int offsetX;
+        private int offsetY;
+
+        TransformingResultPointCallback(ResultPointCallback delegate, RoiTracker roiTracker) {
+            this.delegate = delegate;
+            this.roiTracker = roiTracker;
+        }
+
+        void setTransform(int scale, int offsetX, int offsetY) {
+            this.scale = scale;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        @Override
+        public void foundPossibleResultPoint(ResultPoint point) {
+            boolean identity = scale == 1 && offsetX == 0 && offsetY == 0;
+            float x = point.getX() * scale + offsetX;
+            float y = point.getY() * scale + offsetY;
+            if (roiTracker != null) {
+                roiTracker.onPossiblePoint(x, y);
+            }
+            if (delegate != null) {
+                delegate.foundPossibleResultPoint(identity ? point : new ResultPoint(x, y));
+            }
+        }
+    }
+
+    /**
+     * Lets {@link GenericMultipleBarcodeReader} call a {@link MultiFormatReader} without it setting
+     * up all its readers again for every part of the image it searches.
+     */
+    private static final class StatefulReader implements Reader {
+        private final MultiFormatReader delegate;
+
+        StatefulReader(MultiFormatReader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image) throws NotFoundException {
+            return delegate.decodeWithState(image);
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+            return delegate.decodeWithState(image);
+        }
+
+        @Override
+        public void reset() {
+            delegate.reset();
+        }
+    }
+}
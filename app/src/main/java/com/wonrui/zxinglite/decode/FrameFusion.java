@@ -0,0 +1,232 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.LuminanceSource;
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+
+/**
+ * Averages consecutive frames of the same scene which did not decode, for another attempt at 1D
+ * codes too faint or noisy to read in any single frame. Noise averages out over the frames while
+ * the bars add up, so a damaged or low-contrast label can resolve after a few frames.
+ * <p>
+ * Frames are registered against the first one before they are added: the shift in each direction
+ * is the one that best lines up their column and row luminance profiles, within a few pixels of
+ * hand shake. A frame whose profiles do not line up with any shift shows another scene and starts
+ * a new average. The average is only worth decoding once {@link #MIN_FRAMES} frames agree, and it
+ * weighs recent frames more by halving the sums every {@link #MAX_FRAMES} frames. Once an average
+ * decodes it is started over, so that the next result comes from other frames and counts as
+ * another vote in {@link ResultConsensus}, not the same average again.
+ * <p>
+ * Frames go to whichever decode worker is idle, so one average is shared by all of them and every
+ * method is synchronized. Each worker decodes its own copy of the average, outside the lock.
+ * <p>
+ * 多帧融合：对同一场景连续未解出的帧配准后取平均，用于单帧无法识别的低对比度或污损一维码
+ */
+final class FrameFusion {
+    /**
+     * Frames averaged before the average is decoded
+     */
+    static final int MIN_FRAMES = 3;
+    /**
+     * The sums are halved whenever this many frames have been added
+     */
+    private static final int MAX_FRAMES = 16;
+    /**
+     * Largest shift between frames looked for, in pixels
+     */
+    private static final int MAX_SHIFT = 8;
+    /**
+     * Profiles differing by more than this mean luminance at their best shift show another scene
+     */
+    private static final int MAX_PROFILE_DIFFERENCE = 6;
+
+    private int width;
+    private int height;
+    private byte[] luminances;
+    private int[] sums;
+    private int frames;
+    /**
+     * Changes whenever a new average starts
+     */
+    private int generation;
+    /**
+     * Column and row profiles of the first frame, and of the frame being added
+     */
+    private int[] firstColumns;
+    private int[] firstRows;
+    private int[] columns;
+    private int[] rows;
+
+    /**
+     * A worker's copy of the average
+     */
+    static final class Average {
+        /**
+         * Row by row, at the size of the frames added
+         */
+        byte[] luminances;
+        private int generation;
+    }
+
+    /**
+     * Adds a frame which did not decode, or starts a new average with it, and once at least
+     * {@link #MIN_FRAMES} frames are averaged, copies the average, aligned with the first frame.
+     *
+     * @param source  the framing rect of the frame
+     * @param average receives the average, its array reused if large enough
+     * @return true if the average was copied, false if fewer than {@link #MIN_FRAMES} frames are
+     * averaged
+     */
+    synchronized boolean add(LuminanceSource source, Average average) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width != this.width || height != this.height) {
+            allocate(width, height);
+        }
+        byte[] pixels = matrix(source);
+        if (frames == 0) {
+            start(pixels);
+            return false;
+        }
+
+        profile(pixels, columns, rows);
+        int dx = bestShift(firstColumns, columns);
+        int dy = bestShift(firstRows, rows);
+        if (dx == Integer.MIN_VALUE || dy == Integer.MIN_VALUE) {
+            start(pixels);
+            return false;
+        }
+        for (int y = 0; y < height; y++) {
+            int sourceOffset = clamp(y + dy, height) * width;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                sums[offset + x] += pixels[sourceOffset + clamp(x + dx, width)] & 0xff;
+            }
+        }
+        frames++;
+        if (frames == MAX_FRAMES) {
+            for (int i = 0; i < width * height; i++) {
+                sums[i] >>= 1;
+            }
+            frames /= 2;
+        }
+        if (frames < MIN_FRAMES) {
+            return false;
+        }
+        int size = width * height;
+        if (average.luminances == null || average.luminances.length < size) {
+            average.luminances = new byte[size];
+        }
+        int half = frames / 2;
+        for (int i = 0; i < size; i++) {
+            average.luminances[i] = (byte) ((sums[i] + half) / frames);
+        }
+        average.generation = generation;
+        return true;
+    }
+
+    /**
+     * Starts the average over after a copy of it decoded.
+     *
+     * @return false if the average was started over since the copy was made, as when another copy
+     * of it already decoded, so that this result must not count
+     */
+    synchronized boolean claim(Average average) {
+        if (average.generation != generation) {
+            return false;
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * Forgets the frames added, as when a frame decoded on its own.
+     */
+    synchronized void reset() {
+        frames = 0;
+        generation++;
+    }
+
+    private void allocate(int width, int height) {
+        this.width = width;
+        this.height = height;
+        sums = new int[width * height];
+        firstColumns = new int[width];
+        firstRows = new int[height];
+        columns = new int[width];
+        rows = new int[height];
+        frames = 0;
+    }
+
+    private void start(byte[] pixels) {
+        for (int i = 0; i < width * height; i++) {
+            sums[i] = pixels[i] & 0xff;
+        }
+        profile(pixels, firstColumns, firstRows);
+        frames = 1;
+        generation++;
+    }
+
+    /**
+     * Mean luminance of each column and each row
+     */
+    private void profile(byte[] pixels, int[] columns, int[] rows) {
+        for (int x = 0; x < width; x++) {
+            columns[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                int luminance = pixels[offset + x] & 0xff;
+                rowSum += luminance;
+                columns[x] += luminance;
+            }
+            rows[y] = rowSum / width;
+        }
+        for (int x = 0; x < width; x++) {
+            columns[x] /= height;
+        }
+    }
+
+    /**
+     * @return the shift d for which profile[i + d] best matches first[i], or
+     * {@link Integer#MIN_VALUE} if none matches
+     */
+    private static int bestShift(int[] first, int[] profile) {
+        int length = first.length;
+        int bestShift = Integer.MIN_VALUE;
+        long bestDifference = 0L;
+        int bestCount = 0;
+        for (int shift = -MAX_SHIFT; shift <= MAX_SHIFT; shift++) {
+            long difference = 0L;
+            int start = Math.max(0, -shift);
+            int end = Math.min(length, length - shift);
+            for (int i = start; i < end; i++) {
+                difference += Math.abs(profile[i + shift] - first[i]);
+            }
+            int count = end - start;
+            // Compare mean differences, since the overlap shrinks with the shift
+            if (count > 0 && (bestCount == 0 || difference * bestCount < bestDifference * count)) {
+                bestShift = shift;
+                bestDifference = difference;
+                bestCount = count;
+            }
+        }
+        if (bestDifference > (long) MAX_PROFILE_DIFFERENCE * bestCount) {
+            return Integer.MIN_VALUE;
+        }
+        return bestShift;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    private byte[] matrix(LuminanceSource source) {
+        if (source instanceof RotatedYUVLuminanceSource) {
+            luminances = ((RotatedYUVLuminanceSource) source).getMatrix(luminances);
+            return luminances;
+        }
+        return source.getMatrix();
+    }
+}
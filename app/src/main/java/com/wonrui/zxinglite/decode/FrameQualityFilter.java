@@ -0,0 +1,130 @@
+package com.wonrui.zxinglite.decode;
+
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+
+/**
+ * Rejects frames which cannot decode before they reach the binarizer and readers: frames without
+ * any edges, such as dark ones or with the lens covered, and frames much blurrier than the recent
+ * ones, such as those captured mid-autofocus or in motion. Only a sparse grid of the framing rect
+ * is sampled, so a check takes microseconds.
+ * <p>
+ * Sharpness is measured on the edges crossing short spans at the grid points: the largest one
+ * pixel step within the span over the change across it. That is close to one for a sharp edge and
+ * falls as the edge is smeared over more pixels, whatever the contrast of the scene. Edges must
+ * stand out from the frame's contrast, so that sensor noise, which stays sharp when the image
+ * blurs, does not count. Since how much blur still decodes depends on the size of the code, a
+ * frame is judged against the sharpest recent frame rather than a fixed threshold, and a few
+ * rejected frames in a row always let the next one through.
+ * <p>
+ * Each worker has its own, so not thread-safe.
+ * <p>
+ * 解码前的帧质量预检：跳过无边缘（过暗、遮挡）或明显模糊（对焦中、运动模糊）的帧
+ */
+final class FrameQualityFilter {
+    /**
+     * Distance between grid points, in pixels
+     */
+    private static final int GRID_STEP = 8;
+    /**
+     * Length of the span checked for an edge at each grid point, in pixels
+     */
+    private static final int EDGE_SPAN = 4;
+    /**
+     * Changes across a span below this never count as an edge
+     */
+    private static final int MIN_EDGE_CHANGE = 4;
+    /**
+     * Frames with edges at fewer than this share of the spans hold nothing to decode
+     */
+    private static final float MIN_EDGE_SHARE = 0.005f;
+    /**
+     * Frames below this share of the recent best sharpness are too blurry
+     */
+    private static final float MIN_SHARPNESS_SHARE = 0.5f;
+    /**
+     * The recent best sharpness decays by this factor every frame
+     */
+    private static final float BEST_SHARPNESS_DECAY = 0.95f;
+    private static final int MAX_REJECTED_IN_A_ROW = 4;
+
+    private float bestSharpness;
+    private int rejectedInARow;
+
+    /**
+     * @param source the framing rect of the frame
+     * @return true if the frame is worth decoding
+     */
+    boolean accept(RotatedYUVLuminanceSource source) {
+        int width = source.getWidth() - EDGE_SPAN;
+        int height = source.getHeight() - EDGE_SPAN;
+        long sum = 0L;
+        long sumSquares = 0L;
+        int count = 0;
+        for (int y = GRID_STEP / 2; y < height; y += GRID_STEP) {
+            for (int x = GRID_STEP / 2; x < width; x += GRID_STEP) {
+                int luminance = source.getLuminance(x, y);
+                sum += luminance;
+                sumSquares += luminance * luminance;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return true;
+        }
+        float mean = sum / (float) count;
+        double contrast = Math.sqrt(Math.max(0.0f, sumSquares / (float) count - mean * mean));
+        int minEdgeChange = Math.max(MIN_EDGE_CHANGE, (int) (contrast / 2));
+
+        long largestSteps = 0L;
+        long changes = 0L;
+        int edges = 0;
+        for (int y = GRID_STEP / 2; y < height; y += GRID_STEP) {
+            for (int x = GRID_STEP / 2; x < width; x += GRID_STEP) {
+                int start = source.getLuminance(x, y);
+                int change = Math.abs(source.getLuminance(x + EDGE_SPAN, y) - start);
+                if (change >= minEdgeChange) {
+                    largestSteps += largestStep(source, x, y, 1, 0, start);
+                    changes += change;
+                    edges++;
+                }
+                change = Math.abs(source.getLuminance(x, y + EDGE_SPAN) - start);
+                if (change >= minEdgeChange) {
+                    largestSteps += largestStep(source, x, y, 0, 1, start);
+                    changes += change;
+                    edges++;
+                }
+            }
+        }
+
+        boolean hopeless;
+        if (edges < MIN_EDGE_SHARE * 2 * count) {
+            hopeless = true;
+        } else {
+            float sharpness = largestSteps / (float) changes;
+            bestSharpness = Math.max(bestSharpness * BEST_SHARPNESS_DECAY, sharpness);
+            hopeless = sharpness < MIN_SHARPNESS_SHARE * bestSharpness;
+        }
+        if (hopeless && rejectedInARow < MAX_REJECTED_IN_A_ROW) {
+            rejectedInARow++;
+            return false;
+        }
+        rejectedInARow = 0;
+        return true;
+    }
+
+    private static int largestStep(RotatedYUVLuminanceSource source,
+                                   int x,
+                                   int y,
+                                   int dx,
+                                   int dy,
+                                   int start) {
+        int largest = 0;
+        int previous = start;
+        for (int i = 1; i <= EDGE_SPAN; i++) {
+            int luminance = source.getLuminance(x + i * dx, y + i * dy);
+            largest = Math.max(largest, Math.abs(luminance - previous));
+            previous = luminance;
+        }
+        return largest;
+    }
+}
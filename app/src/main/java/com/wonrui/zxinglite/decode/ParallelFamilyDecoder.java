@@ -0,0 +1,264 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the 1D family and each 2D family of {@link DecodeFormatManager} as independent tasks on
+ * separate threads, over the same luminance source, and returns whichever family finds a code
+ * first. Mixed labels then no longer wait on the sequential reader chain of a single
+ * {@link MultiFormatReader}.
+ * <p>
+ * Each task binarizes the shared source on its own, and each executor thread keeps one reader per
+ * family and its own {@link BinarizerArena}. Once a family wins, its result is returned as soon as
+ * no other task reads the source any more: the caller hands the frame buffer back to the camera
+ * right after, and no task may read it while the next frame is written in. The 2D readers only
+ * use the black matrix, so their tasks are done with the source once they have binarized it, and
+ * may finish decoding later. The 1D readers read row after row, and the readers never check for
+ * interruption, so those are stopped through an {@link AbortableLuminanceSource}, which also
+ * stops the tasks not started yet.
+ * <p>
+ * The executor has a thread per family for each of {@link #getMaxDecoders()} decoders calling in
+ * at once, so frames never queue behind the tasks of other frames.
+ * <p>
+ * 一维码与各二维码族在不同线程上并行解码，取最先成功的结果
+ */
+final class ParallelFamilyDecoder {
+    private static final List<Set<BarcodeFormat>> FAMILIES = new ArrayList<>();
+
+    static {
+        FAMILIES.add(DecodeFormatManager.ONE_D_FORMATS);
+        FAMILIES.add(DecodeFormatManager.QR_CODE_FORMATS);
+        FAMILIES.add(DecodeFormatManager.DATA_MATRIX_FORMATS);
+        FAMILIES.add(DecodeFormatManager.AZTEC_FORMATS);
+        FAMILIES.add(DecodeFormatManager.PDF417_FORMATS);
+    }
+
+    /**
+     * Splits of format sets into families, by format set. Only a handful of sets ever show up.
+     */
+    private static final int MAX_CACHED_SPLITS = 16;
+
+    private final Map<DecodeHintType, Object> hints;
+    private final Set<BarcodeFormat> allFormats;
+    private final int maxDecoders;
+    private final ExecutorService executor;
+    private final Map<Set<BarcodeFormat>, List<Set<BarcodeFormat>>> splits = new ConcurrentHashMap<>();
+    private final ThreadLocal<FamilyReaders> familyReaders = new ThreadLocal<FamilyReaders>() {
+        @Override
+        protected FamilyReaders initialValue() {
+            return new FamilyReaders();
+        }
+    };
+
+    /**
+     * @param hints      the decode hints, whose POSSIBLE_FORMATS are the formats tried when none are
+     *                   given to {@link #decode(LuminanceSource, Set)}
+     * @param maxThreads the most families decoded at once, usually the core count
+     */
+    ParallelFamilyDecoder(Map<DecodeHintType, Object> hints, int maxThreads) {
+        this.hints = hints;
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> decodeFormats =
+                (Collection<BarcodeFormat>) hints.get(DecodeHintType.POSSIBLE_FORMATS);
+        allFormats = EnumSet.copyOf(decodeFormats);
+        int families = Math.max(1, split(allFormats).size());
+        maxDecoders = Math.max(1, maxThreads / families);
+        int threads = families * maxDecoders;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DecodeFamily-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return how many threads may call {@link #decode(LuminanceSource, Set)} at once without
+     * their families waiting for executor threads
+     */
+    int getMaxDecoders() {
+        return maxDecoders;
+    }
+
+    /**
+     * @param source  the luminance source, only read from, and no longer once this returns
+     * @param formats the formats to try, or null for all of them
+     * @return the first result of any family, or null if none decoded
+     */
+    Result decode(LuminanceSource source, Set<BarcodeFormat> formats) {
+        List<Set<BarcodeFormat>> families = split(formats == null ? allFormats : formats);
+        if (families.isEmpty()) {
+            return null;
+        }
+        if (families.size() == 1) {
+            // Nothing to run side by side
+            return decodeFamily(source, families.get(0), null);
+        }
+
+        AbortableLuminanceSource abortableSource = new AbortableLuminanceSource(source);
+        CountDownLatch reading = new CountDownLatch(families.size());
+        CompletionService<Result> completionService = new ExecutorCompletionService<>(executor);
+        for (Set<BarcodeFormat> family : families) {
+            completionService.submit(new FamilyTask(abortableSource, family, reading));
+        }
+        Result result = null;
+        boolean interrupted = false;
+        for (int remaining = families.size(); remaining > 0 && result == null; remaining--) {
+            try {
+                result = completionService.take().get();
+            } catch (ExecutionException ee) {
+                // A reader blew up; treat it as a miss for that family
+            } catch (InterruptedException ie) {
+                interrupted = true;
+                break;
+            }
+        }
+        abortableSource.abort();
+        while (true) {
+            try {
+                // Only the tasks still reading the source are waited for, not the 2D decodes
+                reading.await();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private List<Set<BarcodeFormat>> split(Set<BarcodeFormat> formats) {
+        List<Set<BarcodeFormat>> families = splits.get(formats);
+        if (families == null) {
+            families = new ArrayList<>(FAMILIES.size());
+            for (Set<BarcodeFormat> family : FAMILIES) {
+                Set<BarcodeFormat> subset = EnumSet.copyOf(family);
+                subset.retainAll(formats);
+                if (!subset.isEmpty()) {
+                    families.add(subset);
+                }
+            }
+            if (splits.size() >= MAX_CACHED_SPLITS) {
+                splits.clear();
+            }
+            splits.put(formats, families);
+        }
+        return families;
+    }
+
+    /**
+     * @param reading counted down once the source is no longer read, or null
+     */
+    private Result decodeFamily(LuminanceSource source,
+                                Set<BarcodeFormat> formats,
+                                CountDownLatch reading) {
+        FamilyReaders threadReaders = familyReaders.get();
+        MultiFormatReader reader = threadReaders.readerFor(formats);
+        try {
+            BinaryBitmap bitmap = new BinaryBitmap(threadReaders.binarizerArena.hybrid(source));
+            if (reading != null && !DecodeFormatManager.ONE_D_FORMATS.containsAll(formats)) {
+                // The 2D readers only look at the black matrix, which the bitmap keeps
+                bitmap.getBlackMatrix();
+                reading.countDown();
+                reading = null;
+            }
+            return reader.decodeWithState(bitmap);
+        } catch (ReaderException | AbortableLuminanceSource.AbortedException e) {
+            return null;
+        } finally {
+            reader.reset();
+            if (reading != null) {
+                reading.countDown();
+            }
+        }
+    }
+
+    private final class FamilyTask implements Callable<Result> {
+        private final LuminanceSource source;
+        private final Set<BarcodeFormat> formats;
+        private final CountDownLatch reading;
+
+        FamilyTask(LuminanceSource source, Set<BarcodeFormat> formats, CountDownLatch reading) {
+            this.source = source;
+            this.formats = formats;
+            this.reading = reading;
+        }
+
+        @Override
+        public Result call() {
+            return decodeFamily(source, formats, reading);
+        }
+    }
+
+    /**
+     * The readers of one thread, one per family, re-configured only when the formats wanted from
+     * that family change, and the binarization buffers of that thread.
+     */
+    private final class FamilyReaders {
+        private final BinarizerArena binarizerArena = new BinarizerArena();
+        private final MultiFormatReader[] readers = new MultiFormatReader[FAMILIES.size()];
+        private final List<Set<BarcodeFormat>> readerFormats = new ArrayList<>(FAMILIES.size());
+
+        FamilyReaders() {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new MultiFormatReader();
+                readerFormats.add(null);
+            }
+        }
+
+        MultiFormatReader readerFor(Set<BarcodeFormat> formats) {
+            int family = familyOf(formats);
+            if (!formats.equals(readerFormats.get(family))) {
+                Map<DecodeHintType, Object> familyHints = new EnumMap<>(hints);
+                familyHints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+                readers[family].setHints(familyHints);
+                readerFormats.set(family, formats);
+            }
+            return readers[family];
+        }
+
+        private int familyOf(Set<BarcodeFormat> formats) {
+            BarcodeFormat any = formats.iterator().next();
+            for (int i = 0; i < FAMILIES.size(); i++) {
+                if (FAMILIES.get(i).contains(any)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format family: " + formats);
+        }
+    }
+}
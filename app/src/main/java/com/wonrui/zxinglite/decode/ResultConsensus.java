@@ -0,0 +1,164 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Holds back results of weak formats until enough recent frames agree on them, to cut misreads.
+ * The policy of a format is "k of n": the result is confirmed once k of the last n frames decoded
+ * to the same format and text. Frames which decoded nothing count towards n as well, and so do
+ * frames the quality filter skipped. Formats with a 1 of 1 policy, by default all 2D formats,
+ * whose error correction makes misreads rare, are accepted right away; the 1D formats need 2 of
+ * 3. A result decoded from the average of several frames by {@link FrameFusion} counts once, as
+ * a single frame: the average is started over after it decodes, so a misread of one average
+ * cannot confirm itself.
+ * <p>
+ * The workers all report to one instance, in whatever order their frames finish, so while one
+ * result waits for confirmation the next frames are already being decoded on the other workers.
+ * Thread-safe.
+ * <p>
+ * 结果确认：弱校验的码制需最近若干帧中多帧结果一致才采用，以减少误读
+ */
+final class ResultConsensus {
+    /**
+     * The longest window of frames a policy may span
+     */
+    static final int MAX_WINDOW = 8;
+
+    private static final int[] IMMEDIATE = {1, 1};
+    private static final int[] ONE_D_DEFAULT = {2, 3};
+
+    /**
+     * The k and n of each format
+     */
+    private final Map<BarcodeFormat, int[]> policies;
+    /**
+     * The format and text of the last frames, null where nothing decoded, as a ring
+     */
+    private final String[] recent = new String[MAX_WINDOW];
+    private int next;
+
+    private ResultConsensus(Map<BarcodeFormat, int[]> policies) {
+        this.policies = policies;
+    }
+
+    /**
+     * @param policyString the policies differing from the default, as comma separated entries
+     *                     like {@code CODE_128=1/1} or {@code QR_CODE=2/3}, where the format may
+     *                     also be {@code 1D} or {@code 2D} for all of them. Entries which do not
+     *                     parse are ignored. Null for the default, {@code off} to accept every
+     *                     result right away.
+     * @return the consensus, or null if every format is accepted right away
+     */
+    static ResultConsensus parse(String policyString) {
+        if ("off".equals(policyString)) {
+            return null;
+        }
+        Map<BarcodeFormat, int[]> policies = new EnumMap<>(BarcodeFormat.class);
+        for (BarcodeFormat format : DecodeFormatManager.ONE_D_FORMATS) {
+            policies.put(format, ONE_D_DEFAULT);
+        }
+        if (policyString != null) {
+            for (String entry : policyString.split(",")) {
+                parseEntry(entry.trim(), policies);
+            }
+        }
+        for (int[] policy : policies.values()) {
+            if (policy[0] > 1) {
+                return new ResultConsensus(policies);
+            }
+        }
+        return null;
+    }
+
+    private static void parseEntry(String entry, Map<BarcodeFormat, int[]> policies) {
+        int equals = entry.indexOf('=');
+        int slash = entry.indexOf('/', equals + 1);
+        if (equals <= 0 || slash < 0) {
+            return;
+        }
+        int[] policy;
+        try {
+            policy = new int[]{
+                    Integer.parseInt(entry.substring(equals + 1, slash).trim()),
+                    Integer.parseInt(entry.substring(slash + 1).trim())
+            };
+        } catch (NumberFormatException nfe) {
+            return;
+        }
+        if (policy[0] < 1 || policy[0] > policy[1] || policy[1] > MAX_WINDOW) {
+            return;
+        }
+        String name = entry.substring(0, equals).trim();
+        if ("1D".equals(name) || "2D".equals(name)) {
+            boolean oneD = "1D".equals(name);
+            for (BarcodeFormat format : BarcodeFormat.values()) {
+                if (DecodeFormatManager.ONE_D_FORMATS.contains(format) == oneD) {
+                    policies.put(format, policy);
+                }
+            }
+            return;
+        }
+        try {
+            policies.put(BarcodeFormat.valueOf(name), policy);
+        } catch (IllegalArgumentException iae) {
+            // Not a format, ignore the entry
+        }
+    }
+
+    /**
+     * Counts a frame which decoded to this result.
+     *
+     * @return true if the result is confirmed and should be accepted
+     */
+    synchronized boolean confirm(Result result) {
+        int[] policy = policies.get(result.getBarcodeFormat());
+        if (policy == null) {
+            policy = IMMEDIATE;
+        }
+        if (policy[0] <= 1) {
+            clear();
+            return true;
+        }
+        String key = result.getBarcodeFormat() + ":" + result.getText();
+        add(key);
+        int agreeing = 0;
+        for (int i = 1; i <= policy[1]; i++) {
+            if (key.equals(recent[(next - i + MAX_WINDOW) % MAX_WINDOW])) {
+                agreeing++;
+            }
+        }
+        if (agreeing < policy[0]) {
+            return false;
+        }
+        clear();
+        return true;
+    }
+
+    /**
+     * Counts a frame which decoded nothing.
+     */
+    synchronized void onMissed() {
+        add(null);
+    }
+
+    /**
+     * Forgets the recent frames, as when scanning starts again.
+     */
+    synchronized void reset() {
+        clear();
+    }
+
+    private void add(String key) {
+        recent[next] = key;
+        next = (next + 1) % MAX_WINDOW;
+    }
+
+    private void clear() {
+        Arrays.fill(recent, null);
+    }
+}
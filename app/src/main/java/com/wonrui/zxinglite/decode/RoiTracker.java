@@ -0,0 +1,172 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.ResultPoint;
+
+/**
+ * Predicts where in the framing rect the code will be on the next frame, so that a tight crop
+ * around it can be decoded before the whole framing rect. The prediction is the box around the
+ * result points of the last decode, or failing that around the possible result points the readers
+ * reported recently, grown by a margin for hand movement. It is forgotten after a few frames in a
+ * row where nothing decoded anywhere.
+ * <p>
+ * All coordinates are in the framing rect, as the luminance source of a full frame sees it.
+ * Shared by all decode workers, so every method is synchronized.
+ * <p>
+ * 根据上一次识别结果和可能的结果点预测条码位置，优先解码该区域以减少二值化的像素数
+ */
+final class RoiTracker {
+    /**
+     * The prediction is forgotten after this many frames in a row without a result
+     */
+    private static final int MAX_MISSES = 3;
+    /**
+     * Possible result points older than this are not used
+     */
+    private static final long POINT_MAX_AGE_NANOS = 300L * 1000000L;
+    /**
+     * The most recent possible result points kept
+     */
+    private static final int MAX_POINTS = 16;
+    /**
+     * At least this many recent possible result points make a prediction
+     */
+    private static final int MIN_POINTS = 3;
+    /**
+     * The box is grown on every side by this share of its larger side
+     */
+    private static final float MARGIN_SHARE = 0.5f;
+    /**
+     * The window is at least this share of the framing rect along each side
+     */
+    private static final float MIN_WINDOW_SHARE = 0.35f;
+    /**
+     * Windows larger than this share of the framing rect area save too little to be worth it
+     */
+    private static final float MAX_WINDOW_AREA_SHARE = 0.6f;
+
+    private boolean hasResult;
+    private float resultMinX;
+    private float resultMinY;
+    private float resultMaxX;
+    private float resultMaxY;
+    private int misses;
+
+    private final float[] pointX = new float[MAX_POINTS];
+    private final float[] pointY = new float[MAX_POINTS];
+    private final long[] pointNanos = new long[MAX_POINTS];
+    private int pointCount;
+    private int nextPoint;
+
+    /**
+     * @param width  the width of the framing rect
+     * @param height the height of the framing rect
+     * @param window receives left, top, width and height of the window to decode first
+     * @return true if there is a window worth decoding first, false to decode the whole rect
+     */
+    synchronized boolean predict(int width, int height, int[] window) {
+        float minX;
+        float minY;
+        float maxX;
+        float maxY;
+        if (hasResult) {
+            minX = resultMinX;
+            minY = resultMinY;
+            maxX = resultMaxX;
+            maxY = resultMaxY;
+        } else {
+            long oldest = System.nanoTime() - POINT_MAX_AGE_NANOS;
+            int count = 0;
+            minX = Float.MAX_VALUE;
+            minY = Float.MAX_VALUE;
+            maxX = -Float.MAX_VALUE;
+            maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < pointCount; i++) {
+                if (pointNanos[i] - oldest >= 0L) {
+                    minX = Math.min(minX, pointX[i]);
+                    minY = Math.min(minY, pointY[i]);
+                    maxX = Math.max(maxX, pointX[i]);
+                    maxY = Math.max(maxY, pointY[i]);
+                    count++;
+                }
+            }
+            if (count < MIN_POINTS) {
+                return false;
+            }
+        }
+        // 1D codes only give points along a line, so the margin goes by the larger side
+        float margin = MARGIN_SHARE * Math.max(maxX - minX, maxY - minY);
+        int left = (int) (minX - margin);
+        int top = (int) (minY - margin);
+        int right = (int) Math.ceil(maxX + margin);
+        int bottom = (int) Math.ceil(maxY + margin);
+        int minWidth = (int) (MIN_WINDOW_SHARE * width);
+        int minHeight = (int) (MIN_WINDOW_SHARE * height);
+        if (right - left < minWidth) {
+            left = (left + right - minWidth) / 2;
+            right = left + minWidth;
+        }
+        if (bottom - top < minHeight) {
+            top = (top + bottom - minHeight) / 2;
+            bottom = top + minHeight;
+        }
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        if (right <= left || bottom <= top ||
+                (right - left) * (bottom - top) > MAX_WINDOW_AREA_SHARE * width * height) {
+            return false;
+        }
+        window[0] = left;
+        window[1] = top;
+        window[2] = right - left;
+        window[3] = bottom - top;
+        return true;
+    }
+
+    /**
+     * @param points the result points of a decoded code
+     */
+    synchronized void onDecoded(ResultPoint[] points) {
+        misses = 0;
+        if (points == null || points.length == 0) {
+            return;
+        }
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (ResultPoint point : points) {
+            if (point != null) {
+                minX = Math.min(minX, point.getX());
+                minY = Math.min(minY, point.getY());
+                maxX = Math.max(maxX, point.getX());
+                maxY = Math.max(maxY, point.getY());
+            }
+        }
+        if (minX <= maxX) {
+            hasResult = true;
+            resultMinX = minX;
+            resultMinY = minY;
+            resultMaxX = maxX;
+            resultMaxY = maxY;
+        }
+    }
+
+    /**
+     * Called when nothing decoded in the whole framing rect.
+     */
+    synchronized void onMissed() {
+        if (++misses >= MAX_MISSES) {
+            hasResult = false;
+        }
+    }
+
+    synchronized void onPossiblePoint(float x, float y) {
+        pointX[nextPoint] = x;
+        pointY[nextPoint] = y;
+        pointNanos[nextPoint] = System.nanoTime();
+        nextPoint = (nextPoint + 1) % MAX_POINTS;
+        pointCount = Math.min(pointCount + 1, MAX_POINTS);
+    }
+}
@@ -0,0 +1,86 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Another source at half its width and height, each pixel the average of a 2x2 block, for a cheap
+ * first pass over high resolution frames. Codes which are large in the frame still decode at a
+ * quarter of the pixels. The downscaled pixels are computed once, into buffers handed on from the
+ * previous frame's instance.
+ * <p>
+ * 2x2均值降采样的亮度源，用于高分辨率预览的金字塔解码
+ */
+final class ScaledLuminanceSource extends LuminanceSource {
+    static final int SCALE = 2;
+
+    private final byte[] pixels;
+    private final byte[] upperRow;
+    private final byte[] lowerRow;
+
+    private ScaledLuminanceSource(int width,
+                                  int height,
+                                  byte[] pixels,
+                                  byte[] upperRow,
+                                  byte[] lowerRow) {
+        super(width, height);
+        this.pixels = pixels;
+        this.upperRow = upperRow;
+        this.lowerRow = lowerRow;
+    }
+
+    /**
+     * @param source   the full resolution source
+     * @param previous the instance of the previous frame, whose buffers are reused, or null
+     * @return the source at half the resolution
+     */
+    static ScaledLuminanceSource halve(LuminanceSource source, ScaledLuminanceSource previous) {
+        int sourceWidth = source.getWidth();
+        int width = sourceWidth / SCALE;
+        int height = source.getHeight() / SCALE;
+        byte[] pixels = previous == null ? null : previous.pixels;
+        byte[] upperRow = previous == null ? null : previous.upperRow;
+        byte[] lowerRow = previous == null ? null : previous.lowerRow;
+        if (pixels == null || pixels.length < width * height) {
+            pixels = new byte[width * height];
+        }
+        if (upperRow == null || upperRow.length < sourceWidth) {
+            upperRow = new byte[sourceWidth];
+            lowerRow = new byte[sourceWidth];
+        }
+
+        for (int y = 0; y < height; y++) {
+            // Sources may hand back an array of their own rather than fill the one given
+            byte[] upper = source.getRow(y * SCALE, upperRow);
+            byte[] lower = source.getRow(y * SCALE + 1, lowerRow);
+            int offset = y * width;
+            for (int x = 0, sourceX = 0; x < width; x++, sourceX += SCALE) {
+                int sum = (upper[sourceX] & 0xff) + (upper[sourceX + 1] & 0xff) +
+                        (lower[sourceX] & 0xff) + (lower[sourceX + 1] & 0xff);
+                pixels[offset + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        return new ScaledLuminanceSource(width, height, pixels, upperRow, lowerRow);
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        System.arraycopy(pixels, y * width, row, 0, width);
+        return row;
+    }
+
+    /**
+     * @return the pixels themselves, row by row, in an array which may be longer than
+     * width * height. It must not be modified.
+     */
+    @Override
+    public byte[] getMatrix() {
+        return pixels;
+    }
+}
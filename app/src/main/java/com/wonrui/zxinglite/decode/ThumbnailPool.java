@@ -0,0 +1,102 @@
+package com.wonrui.zxinglite.decode;
+
+import android.graphics.Bitmap;
+
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reusable thumbnails of decoded frames, handed from the decode workers to the capture handler
+ * without encoding or copying them. A worker renders into a pooled thumbnail and publishes it in
+ * its own slot right before reporting success, and the handler takes it from there on receiving
+ * the result. Thumbnails go back to the pool once the handler is done with them.
+ * <p>
+ * 可复用的结果缩略图，解码线程直接将Bitmap交给UI线程，无需JPEG压缩和解压
+ */
+final class ThumbnailPool {
+    /**
+     * Free thumbnails kept beyond this are left to the garbage collector
+     */
+    private static final int MAX_FREE = 2;
+
+    private final ArrayDeque<Thumbnail> free = new ArrayDeque<>(MAX_FREE);
+    private final AtomicReferenceArray<Thumbnail> published;
+
+    /**
+     * @param workerCount the number of workers publishing thumbnails
+     */
+    ThumbnailPool(int workerCount) {
+        published = new AtomicReferenceArray<>(workerCount);
+    }
+
+    /**
+     * Renders the frame into a pooled thumbnail and publishes it for the worker, replacing any
+     * thumbnail of that worker which was not taken.
+     */
+    void publish(int worker, RotatedYUVLuminanceSource source) {
+        Thumbnail thumbnail = acquire(source.getThumbnailWidth(), source.getThumbnailHeight());
+        source.renderThumbnail(thumbnail.pixels);
+        thumbnail.bitmap.setPixels(thumbnail.pixels, 0, thumbnail.width, 0, 0,
+                thumbnail.width, thumbnail.height);
+        thumbnail.scaleFactor = (float) thumbnail.width / source.getWidth();
+        Thumbnail old = published.getAndSet(worker, thumbnail);
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * @return the thumbnail last published by the worker, or null if there is none
+     */
+    Thumbnail take(int worker) {
+        return published.getAndSet(worker, null);
+    }
+
+    synchronized void release(Thumbnail thumbnail) {
+        if (free.size() < MAX_FREE) {
+            free.push(thumbnail);
+        }
+    }
+
+    private synchronized Thumbnail acquire(int width, int height) {
+        while (!free.isEmpty()) {
+            Thumbnail thumbnail = free.pop();
+            if (thumbnail.width == width && thumbnail.height == height) {
+                return thumbnail;
+            }
+            // The framing rect changed size, older thumbnails are of no use any more
+        }
+        return new Thumbnail(width, height);
+    }
+
+    /**
+     * A greyscale thumbnail of a decoded frame, as a mutable bitmap.
+     */
+    static final class Thumbnail {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        private final Bitmap bitmap;
+        private float scaleFactor;
+
+        private Thumbnail(int width, int height) {
+            this.width = width;
+            this.height = height;
+            pixels = new int[width * height];
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return thumbnail size over the size of the decoded area
+         */
+        float getScaleFactor() {
+            return scaleFactor;
+        }
+    }
+}
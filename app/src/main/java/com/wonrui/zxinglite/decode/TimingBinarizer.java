@@ -0,0 +1,64 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Wraps another binarizer and adds up the time spent in it. Binarization is lazy, run by the
+ * readers as they need rows or the whole matrix, so this is the only way to tell it apart from
+ * reader time.
+ * <p>
+ * Not thread-safe, like the binarizers it wraps.
+ */
+final class TimingBinarizer extends Binarizer {
+    private final Binarizer delegate;
+    /**
+     * Shared with the binarizers created from this one, for rotated or cropped copies
+     */
+    private final long[] nanos;
+
+    TimingBinarizer(Binarizer delegate) {
+        this(delegate, new long[1]);
+    }
+
+    private TimingBinarizer(Binarizer delegate, long[] nanos) {
+        super(delegate.getLuminanceSource());
+        this.delegate = delegate;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return the time spent binarizing so far
+     */
+    long getNanos() {
+        return nanos[0];
+    }
+
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getBlackRow(y, row);
+        } finally {
+            nanos[0] += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getBlackMatrix();
+        } finally {
+            nanos[0] += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new TimingBinarizer(delegate.createBinarizer(source), nanos);
+    }
+}
@@ -31,4 +31,17 @@ public class Config {
     public static final String KEY_DISABLE_METERING = "preferences_disable_metering";
     public static final String KEY_DISABLE_BARCODE_SCENE_MODE = "preferences_disable_barcode_scene_mode";
     public static final String KEY_AUTO_OPEN_WEB = "preferences_auto_open_web";
+
+    public static final String KEY_PIPELINED_DECODE = "preferences_pipelined_decode";
+    public static final String KEY_ADAPTIVE_FORMATS = "preferences_adaptive_formats";
+    public static final String KEY_PARALLEL_FAMILIES = "preferences_parallel_families";
+    public static final String KEY_MULTIPLE_BARCODES = "preferences_multiple_barcodes";
+    public static final String KEY_ROI_TRACKING = "preferences_roi_tracking";
+    public static final String KEY_QUALITY_FILTER = "preferences_quality_filter";
+    public static final String KEY_BINARIZER = "preferences_binarizer";
+    public static final String KEY_PYRAMID_DECODE = "preferences_pyramid_decode";
+    public static final String KEY_FRAME_FUSION = "preferences_frame_fusion";
+    public static final String KEY_RESULT_CONFIRMATION = "preferences_result_confirmation";
+    public static final String KEY_CACHE_CAMERA_PARAMETERS = "preferences_cache_camera_parameters";
+    public static final String KEY_CAMERA_KEEP_ALIVE = "preferences_camera_keep_alive";
 }
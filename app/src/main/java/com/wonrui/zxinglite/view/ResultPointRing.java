@@ -0,0 +1,116 @@
+package com.wonrui.zxinglite.view;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed-capacity ring of point coordinates, handed from the decode threads to the UI thread
+ * without locks or allocation. Any number of threads may {@link #add(float, float)}; only one
+ * thread may {@link #drain(float[])}.
+ * <p>
+ * Each writer claims the next sequence number and its slot, stamps the slot with the complement
+ * of that number while writing, then publishes the slot by stamping it with the number itself once
+ * the coordinates are in. The complement never is the number of a point in that slot, since the
+ * capacity is even, so sequence numbers may wrap around. The reader keeps a point only if the stamp
+ * matches before and after reading it. Writers never wait: when they lap the reader, the oldest
+ * points are overwritten, and a point still being written while the reader drains is dropped. A
+ * writer stalled for a whole lap of the ring could even leave a point mixed with a later one. All
+ * of these only cost a dot on the viewfinder.
+ * <p>
+ * 解码线程向界面线程传递可能结果点的无锁环形缓冲区
+ */
+final class ResultPointRing {
+    private final int mask;
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * x and y of each slot, as float bits
+     */
+    private final AtomicIntegerArray coordinates;
+    /**
+     * Sequence number of the point in each slot, or its complement while it is being written
+     */
+    private final AtomicIntegerArray stamps;
+    /**
+     * Sequence number of the first point not drained yet. Only used by the reader.
+     */
+    private int read;
+
+    /**
+     * @param capacity the most points kept between two drains, a power of two
+     */
+    ResultPointRing(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param firstSequence the sequence number of the first point, to test the wrap around
+     */
+    ResultPointRing(int capacity, int firstSequence) {
+        if (capacity < 2 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        coordinates = new AtomicIntegerArray(capacity * 2);
+        stamps = new AtomicIntegerArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            // Not the number of any point in the slot, as if being written
+            stamps.set(slot, ~slot);
+        }
+        next.set(firstSequence);
+        read = firstSequence;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a point, from any thread.
+     */
+    void add(float x, float y) {
+        int sequence = next.getAndIncrement();
+        int slot = sequence & mask;
+        stamps.set(slot, ~sequence);
+        coordinates.set(slot * 2, Float.floatToRawIntBits(x));
+        coordinates.set(slot * 2 + 1, Float.floatToRawIntBits(y));
+        stamps.set(slot, sequence);
+    }
+
+    /**
+     * @return true if points were added since the last drain. Reader only.
+     */
+    boolean hasPending() {
+        return next.get() != read;
+    }
+
+    /**
+     * Moves the points added since the last drain, oldest first, into the given array. Reader
+     * only.
+     *
+     * @param points x and y of each point, at least twice the capacity long
+     * @return the number of points moved
+     */
+    int drain(float[] points) {
+        int end = next.get();
+        int start = end - read > capacity() ? end - capacity() : read;
+        int count = 0;
+        for (int sequence = start; sequence != end; sequence++) {
+            int slot = sequence & mask;
+            if (stamps.get(slot) != sequence) {
+                // Still being written, or already overwritten by a later point
+                continue;
+            }
+            float x = Float.intBitsToFloat(coordinates.get(slot * 2));
+            float y = Float.intBitsToFloat(coordinates.get(slot * 2 + 1));
+            if (stamps.get(slot) != sequence) {
+                // Overwritten while being read
+                continue;
+            }
+            points[count * 2] = x;
+            points[count * 2 + 1] = y;
+            count++;
+        }
+        read = end;
+        return count;
+    }
+}
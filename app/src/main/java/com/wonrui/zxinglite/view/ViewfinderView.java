@@ -1,6 +1,6 @@
 package com.wonrui.zxinglite.view;
 
-import android.annotation.SuppressLint;
+import android.animation.ValueAnimator;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -9,29 +9,28 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.animation.LinearInterpolator;
 
 import com.wonrui.zxinglite.R;
 import com.wonrui.zxinglite.camera.CameraManager;
 import com.google.zxing.ResultPoint;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
 /**
  * 该视图是覆盖在相机的预览视图之上的一层视图。扫描区构成原理，其实是在预览视图上画四块遮罩层，
  * 中间留下的部分保持透明，并画上一条激光线，实际上该线条就是展示而已，与扫描功能没有任何关系。
+ * <p>
+ * 角标与激光线的图片只在创建时解码一次；激光线由与屏幕刷新同步的ValueAnimator驱动，
+ * 每帧只重绘激光线扫过的区域。
  */
 public class ViewfinderView extends View {
-    private static final int MAX_RESULT_POINTS = 20;
-    private static final int CURRENT_POINT_OPACITY = 0xA0;
     /**
-     * 刷新界面的时间
+     * 两次绘制之间最多保留的可能结果点数，须为2的幂
      */
-    private static final long ANIMATION_DELAY = 10L;
+    private static final int MAX_RESULT_POINTS = 16;
+    private static final int CURRENT_POINT_OPACITY = 0xA0;
     private static final int OPAQUE = 0xFF;
     private static final int POINT_SIZE = 6;
     private CameraManager cameraManager;
@@ -40,22 +39,30 @@ public class ViewfinderView extends View {
      */
     private final Paint paint;
     /**
-     * 第一次绘制控件
+     * 中间那条线每秒移动的距离，即60Hz下每帧10像素
      */
-    boolean isFirst = true;
+    private static final int LASER_SPEED = 600;
     /**
-     * 中间那条线每次刷新移动的距离
+     * 扫描线动画，随屏幕刷新回调，帧率不超过屏幕刷新率
      */
-    private static final int SPEEN_DISTANCE = 10;
+    private final ValueAnimator laserAnimator;
     /**
-     * 中间滑动线的最顶端位置
+     * 中间滑动线当前的位置，还没有扫描框时为空
      */
-    private int slideTop;
-
+    private final Rect laserRect = new Rect();
     /**
-     * 中间滑动线的最底端位置
+     * 中间滑动线移动的总距离，决定动画时长
      */
-    private int slideBottom;
+    private int laserTravel;
+    /**
+     * 每帧需要重绘的区域
+     */
+    private final Rect dirtyRect = new Rect();
+    private final Bitmap cornerTopLeft;
+    private final Bitmap cornerTopRight;
+    private final Bitmap cornerBottomLeft;
+    private final Bitmap cornerBottomRight;
+    private final Bitmap laser;
     /**
      * 扫描框中的中间线的宽度
      */
@@ -67,8 +74,17 @@ public class ViewfinderView extends View {
     private final int resultColor;
     private final int resultPointColor;
     private Bitmap resultBitmap;
-    private List<ResultPoint> possibleResultPoints;
-    private List<ResultPoint> lastPossibleResultPoints;
+    /**
+     * 解码线程加入、界面线程取出的可能结果点
+     */
+    private final ResultPointRing possibleResultPoints = new ResultPointRing(MAX_RESULT_POINTS);
+    /**
+     * 本次与上次绘制的可能结果点，依次为x、y，两个数组每次绘制时交换
+     */
+    private float[] currentPoints = new float[MAX_RESULT_POINTS * 2];
+    private float[] lastPoints = new float[MAX_RESULT_POINTS * 2];
+    private int currentPointCount;
+    private int lastPointCount;
 
     // This constructor is used when the class is built from an XML resource.
     public ViewfinderView(Context context, AttributeSet attrs) {
@@ -80,12 +96,45 @@ public class ViewfinderView extends View {
         maskColor = resources.getColor(R.color.viewfinder_mask); // 遮掩层颜色
         resultColor = resources.getColor(R.color.result_view);
         resultPointColor = resources.getColor(R.color.possible_result_points);
-        possibleResultPoints = new ArrayList<>(5);
-        lastPossibleResultPoints = null;
         MIDDLE_LINE_WIDTH = dip2px(context, 3.0F);
+
+        cornerTopLeft = BitmapFactory.decodeResource(resources, R.drawable.scan_corner_top_left);
+        cornerTopRight = BitmapFactory.decodeResource(resources, R.drawable.scan_corner_top_right);
+        cornerBottomLeft = BitmapFactory.decodeResource(resources,
+                R.drawable.scan_corner_bottom_left);
+        cornerBottomRight = BitmapFactory.decodeResource(resources,
+                R.drawable.scan_corner_bottom_right);
+        laser = BitmapFactory.decodeResource(resources, R.drawable.scan_laser);
+
+        laserAnimator = ValueAnimator.ofFloat(0.0f, 1.0f);
+        laserAnimator.setInterpolator(new LinearInterpolator());
+        laserAnimator.setRepeatCount(ValueAnimator.INFINITE);
+        laserAnimator.setRepeatMode(ValueAnimator.RESTART);
+        laserAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator animation) {
+                moveLaser(animation.getAnimatedFraction());
+            }
+        });
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        // 界面不可见时停止动画，不再占用UI线程
+        if (visibility == VISIBLE) {
+            laserAnimator.start();
+        } else {
+            laserAnimator.cancel();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        laserAnimator.cancel();
+        super.onDetachedFromWindow();
     }
 
-    @SuppressLint("DrawAllocation")
     @Override
     protected void onDraw(Canvas canvas) {
         // super.onDraw(canvas);
@@ -116,46 +165,72 @@ public class ViewfinderView extends View {
             float scaleX = frame.width() / (float) previewFrame.width();
             float scaleY = frame.height() / (float) previewFrame.height();
 
-            List<ResultPoint> currentPossible = possibleResultPoints;
-            List<ResultPoint> currentLast = lastPossibleResultPoints;
-            int frameLeft = frame.left;
-            int frameTop = frame.top;
-            if (currentPossible.isEmpty()) {
-                lastPossibleResultPoints = null;
-            } else {
-                possibleResultPoints = new ArrayList<>(5);
-                lastPossibleResultPoints = currentPossible;
-                paint.setAlpha(CURRENT_POINT_OPACITY);
-                paint.setColor(resultPointColor);
-                synchronized (currentPossible) {
-                    for (ResultPoint point : currentPossible) {
-                        canvas.drawCircle(frameLeft + (int) (point.getX() * scaleX),
-                                frameTop + (int) (point.getY() * scaleY),
-                                POINT_SIZE, paint);
-                    }
-                }
-            }
-            if (currentLast != null) {
-                paint.setAlpha(CURRENT_POINT_OPACITY / 2);
-                paint.setColor(resultPointColor);
-                synchronized (currentLast) {
-                    float radius = POINT_SIZE / 2.0f;
-                    for (ResultPoint point : currentLast) {
-                        canvas.drawCircle(frameLeft + (int) (point.getX() * scaleX),
-                                frameTop + (int) (point.getY() * scaleY),
-                                radius, paint);
-                    }
-                }
-            }
+            // 上次画的点这次画小一号，再下次消失
+            float[] points = lastPoints;
+            lastPoints = currentPoints;
+            lastPointCount = currentPointCount;
+            currentPoints = points;
+            currentPointCount = possibleResultPoints.drain(currentPoints);
+
+            paint.setColor(resultPointColor);
+            paint.setAlpha(CURRENT_POINT_OPACITY);
+            drawPoints(canvas, frame, currentPoints, currentPointCount, scaleX, scaleY, POINT_SIZE);
+            paint.setAlpha(CURRENT_POINT_OPACITY / 2);
+            drawPoints(canvas, frame, lastPoints, lastPointCount, scaleX, scaleY,
+                    POINT_SIZE / 2.0f);
+        }
+    }
+
+    /**
+     * 把扫描线移到动画进度对应的位置，只重绘其移动前后覆盖的区域。有可能的结果点要画或擦除时，
+     * 重绘整个扫描框，但不重绘遮掩层。
+     *
+     * @param fraction 动画进度，0到1
+     */
+    private void moveLaser(float fraction) {
+        if (cameraManager == null || resultBitmap != null) {
+            return;
+        }
+        Rect frame = cameraManager.getFramingRect();
+        if (frame == null) {
+            return;
+        }
+        int travel = frame.height() - MIDDLE_LINE_WIDTH;
+        if (travel != laserTravel && travel > 0) {
+            // 扫描框的大小变了，按扫描线的速度重新设定动画时长
+            laserTravel = travel;
+            laserAnimator.setDuration(1000L * travel / LASER_SPEED);
+        }
+        int top = frame.top + (int) (fraction * travel);
+        if (laserRect.isEmpty()) {
+            dirtyRect.set(frame.left, top, frame.right, top + MIDDLE_LINE_WIDTH);
+        } else {
+            dirtyRect.set(laserRect);
+            dirtyRect.union(frame.left, top, frame.right, top + MIDDLE_LINE_WIDTH);
+        }
+        laserRect.set(frame.left, top, frame.right, top + MIDDLE_LINE_WIDTH);
 
-            // Request another update at the animation interval, but only repaint the laser line,
-            // not the entire viewfinder mask.
-            postInvalidateDelayed(ANIMATION_DELAY,
-                    frame.left - POINT_SIZE,
+        if (possibleResultPoints.hasPending() || currentPointCount > 0 || lastPointCount > 0) {
+            dirtyRect.union(frame.left - POINT_SIZE,
                     frame.top - POINT_SIZE,
                     frame.right + POINT_SIZE,
                     frame.bottom + POINT_SIZE);
         }
+        invalidate(dirtyRect);
+    }
+
+    private void drawPoints(Canvas canvas,
+                            Rect frame,
+                            float[] points,
+                            int count,
+                            float scaleX,
+                            float scaleY,
+                            float radius) {
+        for (int i = 0; i < count; i++) {
+            canvas.drawCircle(frame.left + (int) (points[i * 2] * scaleX),
+                    frame.top + (int) (points[i * 2 + 1] * scaleY),
+                    radius, paint);
+        }
     }
 
     /**
@@ -190,31 +265,13 @@ public class ViewfinderView extends View {
         paint.setColor(Color.WHITE);
         paint.setAlpha(OPAQUE);
 
-        Resources resources = getResources();
-        /**
-         * 这些资源可以用缓存进行管理，不需要每次刷新都新建
-         */
-        Bitmap bitmapCornerTopleft = BitmapFactory.decodeResource(resources,
-                R.drawable.scan_corner_top_left);
-        Bitmap bitmapCornerTopright = BitmapFactory.decodeResource(resources,
-                R.drawable.scan_corner_top_right);
-        Bitmap bitmapCornerBottomLeft = BitmapFactory.decodeResource(resources,
-                R.drawable.scan_corner_bottom_left);
-        Bitmap bitmapCornerBottomRight = BitmapFactory.decodeResource(
-                resources, R.drawable.scan_corner_bottom_right);
-
-        canvas.drawBitmap(bitmapCornerTopleft, frame.left, frame.top, paint);
-        canvas.drawBitmap(bitmapCornerTopright, frame.right - bitmapCornerTopright.getWidth(),
+        canvas.drawBitmap(cornerTopLeft, frame.left, frame.top, paint);
+        canvas.drawBitmap(cornerTopRight, frame.right - cornerTopRight.getWidth(),
                 frame.top, paint);
-        canvas.drawBitmap(bitmapCornerBottomLeft, frame.left,
-                2 + (frame.bottom - bitmapCornerBottomLeft.getHeight()), paint);
-        canvas.drawBitmap(bitmapCornerBottomRight, frame.right - bitmapCornerBottomRight.getWidth(),
-                2 + (frame.bottom - bitmapCornerBottomRight.getHeight()), paint);
-
-        bitmapCornerTopleft.recycle();
-        bitmapCornerTopright.recycle();
-        bitmapCornerBottomLeft.recycle();
-        bitmapCornerBottomRight.recycle();
+        canvas.drawBitmap(cornerBottomLeft, frame.left,
+                2 + (frame.bottom - cornerBottomLeft.getHeight()), paint);
+        canvas.drawBitmap(cornerBottomRight, frame.right - cornerBottomRight.getWidth(),
+                2 + (frame.bottom - cornerBottomRight.getHeight()), paint);
     }
 
     /**
@@ -224,43 +281,22 @@ public class ViewfinderView extends View {
      * @param frame  扫描框
      */
     private void drawScanningLine(Canvas canvas, Rect frame) {
-        // 初始化中间线滑动的最上边和最下边
-        if (isFirst) {
-            isFirst = false;
-            slideTop = frame.top;
-            slideBottom = frame.bottom;
+        // 位置由laserAnimator更新，动画还没开始时画在扫描框顶部
+        if (laserRect.isEmpty()) {
+            laserRect.set(frame.left, frame.top, frame.right, frame.top + MIDDLE_LINE_WIDTH);
         }
-
-        // 绘制中间的线,每次刷新界面，中间的线往下移动SPEEN_DISTANCE
-        slideTop += SPEEN_DISTANCE;
-        if (slideTop >= slideBottom) {
-            slideTop = frame.top;
-        }
-
-        // 从图片资源画扫描线
-        Rect lineRect = new Rect();
-        lineRect.left = frame.left;
-        lineRect.right = frame.right;
-        lineRect.top = slideTop;
-        lineRect.bottom = (slideTop + MIDDLE_LINE_WIDTH);
-        canvas.drawBitmap(((BitmapDrawable) getResources().getDrawable(
-                R.drawable.scan_laser)).getBitmap(), null, lineRect, paint);
+        canvas.drawBitmap(laser, null, laserRect, paint);
     }
 
     public void setCameraManager(CameraManager cameraManager) {
         this.cameraManager = cameraManager;
     }
 
+    /**
+     * 可在解码线程调用，不会等待界面绘制。两次绘制之间的点超过MAX_RESULT_POINTS时丢弃最早的。
+     */
     public void addPossibleResultPoint(ResultPoint point) {
-        List<ResultPoint> points = possibleResultPoints;
-        synchronized (points) {
-            points.add(point);
-            int size = points.size();
-            if (size > MAX_RESULT_POINTS) {
-                // trim it
-                points.subList(0, size - MAX_RESULT_POINTS / 2).clear();
-            }
-        }
+        possibleResultPoints.add(point.getX(), point.getY());
     }
 
     public void drawViewfinder() {
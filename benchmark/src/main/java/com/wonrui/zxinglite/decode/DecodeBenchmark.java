@@ -0,0 +1,427 @@
+package com.wonrui.zxinglite.decode;
+
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.Result;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the decode hot path of the app, {@link RotatedYUVLuminanceSource} plus {@link FrameDecoder},
+ * over a corpus of recorded NV21 preview frames on a plain JVM, and reports time per frame,
+ * allocation per frame and the decode success rate.
+ * <p>
+ * Each corpus file holds one raw NV21 frame named like {@code anything_640x480.nv21}. Like the
+ * app, frames are rotated by the given rotation and cropped to a centered 5/8 framing rectangle.
+ * Warm-up iterations over the corpus run first and are not reported, then each measured iteration
+ * prints one line, and the mean and spread across them come last.
+ * <p>
+ * Usage: {@code DecodeBenchmark <corpus dir> [rotation=90] [warmup=5] [iterations=10] [adaptive|all] [parallel] [roi] [quality] [hybrid] [fullres] [fusion] [empty] [workers=N]}
+ * <p>
+ * With {@code roi}, the corpus is taken as a sequence of frames of the same scene, and each frame
+ * is first decoded in the window where the previous ones found the code. With {@code quality},
+ * frames too blurry or too dark are skipped as in the app. With {@code hybrid}, every pass uses the
+ * hybrid binarizer instead of trying the global histogram one first. With {@code fullres}, large
+ * frames are not decoded at half resolution first. With {@code fusion}, the corpus is again taken as a
+ * sequence, and frames which did not decode are averaged for 1D codes. With {@code empty}, runs of
+ * {@link #EMPTY_RUN} generated frames without a code go before every {@link #CODE_RUN} corpus
+ * frames, as while aiming, where most frames show no code. With {@code workers=N}, N decode
+ * workers on their own threads take the next frame whenever they are idle, as in the app, and
+ * share the scheduler, ROI tracker and frame fusion of the pool.
+ * <p>
+ * 在JVM上对解码流程做基准测试，输入为录制的NV21预览帧
+ */
+public final class DecodeBenchmark {
+    private static final Pattern FRAME_NAME = Pattern.compile(".*_(\\d+)x(\\d+)\\.nv21");
+    private static final int EMPTY_RUN = 20;
+    private static final int CODE_RUN = 5;
+
+    private final List<Frame> corpus;
+    private final int rotation;
+    private final boolean adaptive;
+    private final boolean parallel;
+    private final boolean roi;
+    private final boolean quality;
+    private final BinarizerStrategy binarizerStrategy;
+    private final boolean pyramid;
+    private final boolean fusion;
+    private final int workers;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private DecodeBenchmark(List<Frame> corpus,
+                            int rotation,
+                            boolean adaptive,
+                            boolean parallel,
+                            boolean roi,
+                            boolean quality,
+                            BinarizerStrategy binarizerStrategy,
+                            boolean pyramid,
+                            boolean fusion,
+                            int workers) {
+        this.corpus = corpus;
+        this.rotation = rotation;
+        this.adaptive = adaptive;
+        this.parallel = parallel;
+        this.roi = roi;
+        this.quality = quality;
+        this.binarizerStrategy = binarizerStrategy;
+        this.pyramid = pyramid;
+        this.fusion = fusion;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: DecodeBenchmark <corpus dir> [rotation=90] [warmup=5] " +
+                    "[iterations=10] [adaptive|all] [parallel] [roi] [quality] [hybrid] [fullres] [fusion] [empty] [workers=N]");
+            System.exit(2);
+        }
+        int rotation = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        boolean adaptive = args.length <= 4 || !"all".equals(args[4]);
+        boolean parallel = false;
+        boolean roi = false;
+        boolean quality = false;
+        BinarizerStrategy binarizerStrategy = BinarizerStrategy.GLOBAL_FIRST;
+        boolean pyramid = true;
+        boolean fusion = false;
+        boolean empty = false;
+        int workers = 1;
+        for (int i = 5; i < args.length; i++) {
+            parallel |= "parallel".equals(args[i]);
+            roi |= "roi".equals(args[i]);
+            quality |= "quality".equals(args[i]);
+            fusion |= "fusion".equals(args[i]);
+            empty |= "empty".equals(args[i]);
+            if ("hybrid".equals(args[i])) {
+                binarizerStrategy = BinarizerStrategy.HYBRID;
+            }
+            if ("fullres".equals(args[i])) {
+                pyramid = false;
+            }
+            if (args[i].startsWith("workers=")) {
+                workers = Integer.parseInt(args[i].substring("workers=".length()));
+            }
+        }
+
+        List<Frame> corpus = loadCorpus(new File(args[0]));
+        if (corpus.isEmpty()) {
+            System.err.println("No *_WxH.nv21 frames in " + args[0]);
+            System.exit(1);
+        }
+        if (empty) {
+            corpus = withEmptyRuns(corpus);
+        }
+        System.out.println("Frames: " + corpus.size() +
+                ", rotation: " + rotation +
+                ", formats: " + (adaptive ? "adaptive" : "all") +
+                (parallel ? ", parallel families" : "") +
+                (roi ? ", roi tracking" : "") +
+                (quality ? ", quality filter" : "") +
+                ", binarizer: " + binarizerStrategy +
+                (pyramid ? ", pyramid" : "") +
+                (fusion ? ", fusion" : "") +
+                (empty ? ", with empty frames" : "") +
+                (workers > 1 ? ", " + workers + " workers" : ""));
+
+        DecodeBenchmark benchmark = new DecodeBenchmark(corpus, rotation, adaptive, parallel, roi, quality,
+                binarizerStrategy, pyramid, fusion, workers);
+        for (int i = 0; i < warmup; i++) {
+            benchmark.runIteration();
+        }
+        double[] nanosPerFrame = new double[iterations];
+        double[] bytesPerFrame = new double[iterations];
+        Iteration last = null;
+        for (int i = 0; i < iterations; i++) {
+            last = benchmark.runIteration();
+            nanosPerFrame[i] = last.nanos / (double) corpus.size();
+            bytesPerFrame[i] = last.bytes / (double) corpus.size();
+            System.out.println(String.format("Iteration %d: %.0f ns/frame, %s B/frame, %.3f success",
+                    i + 1,
+                    nanosPerFrame[i],
+                    last.bytes < 0 ? "n/a" : String.format("%.0f", bytesPerFrame[i]),
+                    last.decoded / (double) corpus.size()));
+        }
+        if (last != null) {
+            System.out.println(String.format("Result: %.0f +- %.0f ns/frame, %s B/frame, %.3f success",
+                    mean(nanosPerFrame),
+                    stdDev(nanosPerFrame),
+                    last.bytes < 0 ? "n/a" : String.format("%.0f", mean(bytesPerFrame)),
+                    last.decoded / (double) corpus.size()));
+            System.out.println(last.metrics);
+        }
+    }
+
+    /**
+     * Decodes the whole corpus once, with fresh decoder state as on opening the scanner.
+     */
+    private Iteration runIteration() {
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, new ArrayList<>(DecodeFormatManager.ALL_FORMATS));
+        DecodeMetrics metrics = new DecodeMetrics();
+        AdaptiveFormatScheduler scheduler =
+                adaptive ? new AdaptiveFormatScheduler(DecodeFormatManager.ALL_FORMATS) : null;
+        ParallelFamilyDecoder familyDecoder = parallel ?
+                new ParallelFamilyDecoder(hints, Runtime.getRuntime().availableProcessors()) : null;
+        RoiTracker roiTracker = roi ? new RoiTracker() : null;
+        FrameFusion frameFusion = fusion ? new FrameFusion() : null;
+        AtomicInteger nextFrame = new AtomicInteger();
+        Worker[] pool = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            pool[i] = new Worker(new FrameDecoder(hints, scheduler, familyDecoder, metrics,
+                    roiTracker, binarizerStrategy, pyramid, frameFusion),
+                    quality ? new FrameQualityFilter() : null, metrics, nextFrame);
+        }
+
+        long start = System.nanoTime();
+        if (workers == 1) {
+            pool[0].run();
+        } else {
+            Thread[] threads = new Thread[workers];
+            for (int i = 0; i < workers; i++) {
+                threads[i] = new Thread(pool[i], "DecodeWorker" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (familyDecoder != null) {
+            familyDecoder.shutdown();
+        }
+        long bytes = 0L;
+        int decoded = 0;
+        for (Worker worker : pool) {
+            bytes = bytes < 0 || worker.bytes < 0 ? -1L : bytes + worker.bytes;
+            decoded += worker.decoded;
+        }
+        return new Iteration(nanos, bytes, decoded, metrics.snapshot());
+    }
+
+    /**
+     * One decode worker, taking the next frame of the corpus until there is none left
+     */
+    private final class Worker implements Runnable {
+        private final FrameDecoder frameDecoder;
+        private final FrameQualityFilter qualityFilter;
+        private final DecodeMetrics metrics;
+        private final AtomicInteger nextFrame;
+        private int decoded;
+        private long bytes;
+
+        Worker(FrameDecoder frameDecoder,
+               FrameQualityFilter qualityFilter,
+               DecodeMetrics metrics,
+               AtomicInteger nextFrame) {
+            this.frameDecoder = frameDecoder;
+            this.qualityFilter = qualityFilter;
+            this.metrics = metrics;
+            this.nextFrame = nextFrame;
+        }
+
+        @Override
+        public void run() {
+            long startBytes = allocatedBytes();
+            int index;
+            while ((index = nextFrame.getAndIncrement()) < corpus.size()) {
+                Frame frame = corpus.get(index);
+                long frameStart = System.nanoTime();
+                metrics.recordFrame(frameStart, 0);
+                RotatedYUVLuminanceSource source = frame.buildLuminanceSource(rotation);
+                metrics.record(DecodeMetrics.Stage.LUMINANCE_SOURCE, System.nanoTime() - frameStart);
+                if (qualityFilter != null) {
+                    long checkStart = System.nanoTime();
+                    boolean accepted = qualityFilter.accept(source);
+                    metrics.record(DecodeMetrics.Stage.QUALITY_CHECK, System.nanoTime() - checkStart);
+                    if (!accepted) {
+                        metrics.recordRejected();
+                        continue;
+                    }
+                }
+                Result result = frameDecoder.decode(source);
+                if (result != null) {
+                    decoded++;
+                }
+            }
+            long endBytes = allocatedBytes();
+            bytes = startBytes < 0 ? -1L : endBytes - startBytes;
+        }
+    }
+
+    /**
+     * @return bytes allocated by the calling thread so far, or -1 where the JVM cannot tell.
+     * Allocation by the family decoder threads is not included.
+     */
+    private long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1L;
+    }
+
+    private static List<Frame> loadCorpus(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        List<Frame> frames = new ArrayList<>();
+        if (files == null) {
+            return frames;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher matcher = FRAME_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int width = Integer.parseInt(matcher.group(1));
+                int height = Integer.parseInt(matcher.group(2));
+                frames.add(new Frame(file.getName(), readFully(file), width, height));
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return the corpus with a run of frames without a code before every few frames, each the
+     * size of the frame after it
+     */
+    private static List<Frame> withEmptyRuns(List<Frame> corpus) {
+        Random random = new Random(1L);
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < corpus.size(); i++) {
+            Frame frame = corpus.get(i);
+            if (i % CODE_RUN == 0) {
+                for (int j = 0; j < EMPTY_RUN; j++) {
+                    frames.add(Frame.empty(random, frame.width, frame.height));
+                }
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated frame: " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0.0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double stdDev(double[] values) {
+        double mean = mean(values);
+        double sum = 0.0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / values.length);
+    }
+
+    private static final class Frame {
+        private final byte[] data;
+        private final int width;
+        private final int height;
+
+        Frame(String name, byte[] data, int width, int height) throws IOException {
+            if (data.length < width * height) {
+                throw new IOException("Too short for " + width + "x" + height + ": " + name);
+            }
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return a frame of a scene without a code: shaded rectangles, like objects on a desk,
+         * with sensor noise
+         */
+        static Frame empty(Random random, int width, int height) {
+            byte[] data = new byte[width * height * 3 / 2];
+            int[] luminances = new int[width * height];
+            Arrays.fill(luminances, 60 + random.nextInt(120));
+            for (int i = 0; i < 12; i++) {
+                int left = random.nextInt(width);
+                int top = random.nextInt(height);
+                int right = Math.min(width, left + 20 + random.nextInt(width / 2));
+                int bottom = Math.min(height, top + 20 + random.nextInt(height / 2));
+                int luminance = 20 + random.nextInt(220);
+                for (int y = top; y < bottom; y++) {
+                    Arrays.fill(luminances, y * width + left, y * width + right, luminance);
+                }
+            }
+            for (int i = 0; i < width * height; i++) {
+                data[i] = (byte) Math.max(0, Math.min(255, luminances[i] + random.nextInt(16) - 8));
+            }
+            try {
+                return new Frame("empty", data, width, height);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Crops to a centered 5/8 of the rotated frame, as the app's framing rectangle does.
+         */
+        RotatedYUVLuminanceSource buildLuminanceSource(int rotation) {
+            boolean swap = rotation == 90 || rotation == 270;
+            int rotatedWidth = swap ? height : width;
+            int rotatedHeight = swap ? width : height;
+            int cropWidth = 5 * rotatedWidth / 8;
+            int cropHeight = 5 * rotatedHeight / 8;
+            return new RotatedYUVLuminanceSource(data, width, height, rotation,
+                    (rotatedWidth - cropWidth) / 2, (rotatedHeight - cropHeight) / 2,
+                    cropWidth, cropHeight);
+        }
+    }
+
+    private static final class Iteration {
+        final long nanos;
+        final long bytes;
+        final int decoded;
+        final DecodeMetrics.Snapshot metrics;
+
+        Iteration(long nanos, long bytes, int decoded, DecodeMetrics.Snapshot metrics) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.decoded = decoded;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.BarcodeFormat;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link AdaptiveFormatScheduler} narrows the formats, and that misses only widen them
+ * for a frame at a time.
+ */
+public class AdaptiveFormatSchedulerTest {
+    private static final int FRAMES = 200;
+
+    @Test
+    public void triesAllFormatsUntilSomethingDecodes() {
+        AdaptiveFormatScheduler scheduler =
+                new AdaptiveFormatScheduler(DecodeFormatManager.ALL_FORMATS);
+        for (int i = 0; i < 20; i++) {
+            Set<BarcodeFormat> formats = scheduler.nextFormats();
+            assertSame(scheduler.getAllFormats(), formats);
+            scheduler.onMissed(formats);
+        }
+    }
+
+    @Test
+    public void narrowsToDecodedFormat() {
+        AdaptiveFormatScheduler scheduler = learned(BarcodeFormat.CODE_128);
+        assertEquals(Collections.singleton(BarcodeFormat.CODE_128), scheduler.nextFormats());
+    }
+
+    @Test
+    public void missesAlternateNarrowAndWide() {
+        AdaptiveFormatScheduler scheduler = learned(BarcodeFormat.CODE_128);
+        int wide = 0;
+        int wideRun = 0;
+        int longestWideRun = 0;
+        int narrowRun = 0;
+        int longestNarrowRun = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            // Aiming with no code in view
+            Set<BarcodeFormat> formats = scheduler.nextFormats();
+            if (formats == scheduler.getAllFormats()) {
+                wide++;
+                wideRun++;
+                narrowRun = 0;
+            } else {
+                assertEquals(Collections.singleton(BarcodeFormat.CODE_128), formats);
+                narrowRun++;
+                wideRun = 0;
+            }
+            longestWideRun = Math.max(longestWideRun, wideRun);
+            longestNarrowRun = Math.max(longestNarrowRun, narrowRun);
+            scheduler.onMissed(formats);
+        }
+        assertTrue("Wide for " + longestWideRun + " frames in a row", longestWideRun <= 2);
+        assertTrue("Narrow for " + longestNarrowRun + " frames in a row", longestNarrowRun <= 10);
+        assertTrue("Wide on " + wide + " of " + FRAMES + " frames", wide > 0 && wide <= FRAMES / 4);
+    }
+
+    @Test
+    public void keepsLearnedFormatsForTheNextScan() {
+        // A format set of its own, so that no other test shares the scheduler of the process
+        AdaptiveFormatScheduler scheduler =
+                AdaptiveFormatScheduler.forFormats(DecodeFormatManager.PRODUCT_FORMATS);
+        scheduler.onDecoded(BarcodeFormat.EAN_13);
+        scheduler = AdaptiveFormatScheduler.forFormats(DecodeFormatManager.PRODUCT_FORMATS);
+        assertEquals(Collections.singleton(BarcodeFormat.EAN_13), scheduler.nextFormats());
+    }
+
+    private static AdaptiveFormatScheduler learned(BarcodeFormat format) {
+        AdaptiveFormatScheduler scheduler =
+                new AdaptiveFormatScheduler(DecodeFormatManager.ALL_FORMATS);
+        scheduler.onDecoded(format);
+        return scheduler;
+    }
+}
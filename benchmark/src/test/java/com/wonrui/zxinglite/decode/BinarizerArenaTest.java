@@ -0,0 +1,168 @@
+package com.wonrui.zxinglite.decode;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.wonrui.zxinglite.camera.RotatedYUVLuminanceSource;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the binarizers of {@link BinarizerArena} give exactly the bits of ZXing's, over
+ * random frames, crops and rotations, with one arena reused throughout like a decode worker does.
+ */
+public class BinarizerArenaTest {
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+    /**
+     * Sizes around the block size of 8 and the hybrid minimum of 40, where the edge cases are
+     */
+    private static final int[] EDGE_SIZES = {1, 7, 8, 9, 39, 40, 41, 47, 48, 49};
+
+    private final BinarizerArena arena = new BinarizerArena();
+
+    @Test
+    public void matchesZxingOnRandomCrops() throws Exception {
+        Random random = new Random(42L);
+        for (int i = 0; i < 300; i++) {
+            int dataWidth = 16 + random.nextInt(300);
+            int dataHeight = 16 + random.nextInt(300);
+            byte[] frame = frame(random, dataWidth, dataHeight);
+            int rotation = ROTATIONS[random.nextInt(ROTATIONS.length)];
+            boolean sideways = rotation == 90 || rotation == 270;
+            int rotatedWidth = sideways ? dataHeight : dataWidth;
+            int rotatedHeight = sideways ? dataWidth : dataHeight;
+            int width = 1 + random.nextInt(rotatedWidth);
+            int height = 1 + random.nextInt(rotatedHeight);
+            int left = random.nextInt(rotatedWidth - width + 1);
+            int top = random.nextInt(rotatedHeight - height + 1);
+            assertSameBits(new RotatedYUVLuminanceSource(frame, dataWidth, dataHeight, rotation,
+                    left, top, width, height), "frame " + i);
+        }
+    }
+
+    @Test
+    public void matchesZxingAtEdgeSizes() throws Exception {
+        Random random = new Random(7L);
+        for (int width : EDGE_SIZES) {
+            for (int height : EDGE_SIZES) {
+                for (int rotation : ROTATIONS) {
+                    boolean sideways = rotation == 90 || rotation == 270;
+                    int dataWidth = sideways ? height : width;
+                    int dataHeight = sideways ? width : height;
+                    byte[] frame = frame(random, dataWidth, dataHeight);
+                    assertSameBits(new RotatedYUVLuminanceSource(frame, dataWidth, dataHeight,
+                            rotation, 0, 0, width, height),
+                            width + "x" + height + " rotated " + rotation);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesZxingOnFlatFrames() throws Exception {
+        // Too little contrast for a global threshold, which both must refuse alike
+        Random random = new Random(3L);
+        for (int i = 0; i < 20; i++) {
+            int width = 20 + random.nextInt(200);
+            int height = 20 + random.nextInt(200);
+            byte[] frame = new byte[width * height * 3 / 2];
+            int base = random.nextInt(200);
+            for (int j = 0; j < width * height; j++) {
+                frame[j] = (byte) (base + random.nextInt(8));
+            }
+            assertSameBits(new RotatedYUVLuminanceSource(frame, width, height, 90, 0, 0,
+                    height, width), "flat frame " + i);
+        }
+    }
+
+    private void assertSameBits(LuminanceSource source, String what) throws Exception {
+        assertSameMatrix(new GlobalHistogramBinarizer(source), arena.globalHistogram(source),
+                "global histogram matrix of " + what);
+        assertSameRows(new GlobalHistogramBinarizer(source), arena.globalHistogram(source),
+                "global histogram rows of " + what);
+        assertSameMatrix(new HybridBinarizer(source), arena.hybrid(source),
+                "hybrid matrix of " + what);
+        assertSameRows(new HybridBinarizer(source), arena.hybrid(source),
+                "hybrid rows of " + what);
+    }
+
+    private static void assertSameMatrix(Binarizer expected, Binarizer actual, String what) {
+        BitMatrix expectedMatrix = null;
+        try {
+            expectedMatrix = expected.getBlackMatrix();
+        } catch (NotFoundException nfe) {
+            // Then the arena must not find a threshold either
+        }
+        BitMatrix actualMatrix;
+        try {
+            actualMatrix = actual.getBlackMatrix();
+        } catch (NotFoundException nfe) {
+            assertNull(what + ": no threshold found", expectedMatrix);
+            return;
+        }
+        if (expectedMatrix == null) {
+            fail(what + ": threshold found where ZXing finds none");
+        }
+        assertEquals(what, expectedMatrix, actualMatrix);
+    }
+
+    private static void assertSameRows(Binarizer expected, Binarizer actual, String what) {
+        BitArray actualRow = new BitArray(1);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            BitArray expectedRow;
+            try {
+                expectedRow = expected.getBlackRow(y, null);
+            } catch (NotFoundException nfe) {
+                expectedRow = null;
+            }
+            try {
+                // Reusing the row, as the 1D readers do
+                actualRow = actual.getBlackRow(y, actualRow);
+            } catch (NotFoundException nfe) {
+                assertNull(what + ", row " + y + ": no threshold found", expectedRow);
+                continue;
+            }
+            if (expectedRow == null) {
+                fail(what + ", row " + y + ": threshold found where ZXing finds none");
+            }
+            assertEquals(what + ", row " + y, expectedRow, actualRow);
+        }
+    }
+
+    /**
+     * An NV21 frame whose Y plane mixes a gradient, bars of random width and contrast, and noise,
+     * so that the thresholds vary over the frame
+     */
+    private static byte[] frame(Random random, int width, int height) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        int noise = 1 + random.nextInt(40);
+        int contrast = 10 + random.nextInt(150);
+        int gradient = random.nextInt(100);
+        boolean[] bars = new boolean[width];
+        boolean dark = false;
+        for (int x = 0; x < width; x++) {
+            if (random.nextInt(4) == 0) {
+                dark = !dark;
+            }
+            bars[x] = dark;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int luminance = 40 + gradient * x / width + (bars[x] ? 0 : contrast) +
+                        random.nextInt(noise);
+                frame[y * width + x] = (byte) Math.min(255, luminance);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,190 @@
+package com.wonrui.zxinglite.view;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link ResultPointRing} alone and with several writers lapping the reader, also across
+ * the wrap of the sequence numbers.
+ */
+public class ResultPointRingTest {
+    private static final int CAPACITY = 16;
+    private static final int WRITERS = 4;
+    private static final int POINTS_PER_WRITER = 200000;
+    /**
+     * Wraps after a few points
+     */
+    private static final int NEAR_WRAP = Integer.MAX_VALUE - 5;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityNotPowerOfTwo() {
+        new ResultPointRing(12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityOne() {
+        new ResultPointRing(1);
+    }
+
+    @Test
+    public void drainsInOrder() {
+        ResultPointRing ring = new ResultPointRing(CAPACITY);
+        assertFalse(ring.hasPending());
+        float[] points = new float[CAPACITY * 2];
+        assertEquals(0, ring.drain(points));
+        for (int i = 0; i < 5; i++) {
+            ring.add(i, -i);
+        }
+        assertTrue(ring.hasPending());
+        assertEquals(5, ring.drain(points));
+        assertFalse(ring.hasPending());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, points[i * 2], 0f);
+            assertEquals(-i, points[i * 2 + 1], 0f);
+        }
+        assertEquals(0, ring.drain(points));
+    }
+
+    @Test
+    public void keepsNewestWhenLapped() {
+        ResultPointRing ring = new ResultPointRing(CAPACITY);
+        float[] points = new float[CAPACITY * 2];
+        for (int i = 0; i < CAPACITY * 3 + 5; i++) {
+            ring.add(i, -i);
+        }
+        assertEquals(CAPACITY, ring.drain(points));
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(CAPACITY * 2 + 5 + i, points[i * 2], 0f);
+        }
+    }
+
+    @Test
+    public void drainsAcrossSequenceWrap() {
+        ResultPointRing ring = new ResultPointRing(CAPACITY, NEAR_WRAP);
+        float[] points = new float[CAPACITY * 2];
+        int value = 0;
+        for (int round = 0; round < 3; round++) {
+            // A few points at a time, with the wrap in the middle of the first round
+            for (int i = 0; i < 10; i++) {
+                ring.add(value + i, -(value + i));
+            }
+            assertEquals(10, ring.drain(points));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(value + i, points[i * 2], 0f);
+            }
+            value += 10;
+        }
+        // Lapped across the wrap
+        ring = new ResultPointRing(CAPACITY, NEAR_WRAP);
+        for (int i = 0; i < CAPACITY + 7; i++) {
+            ring.add(i, -i);
+        }
+        assertEquals(CAPACITY, ring.drain(points));
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(7 + i, points[i * 2], 0f);
+        }
+        assertFalse(ring.hasPending());
+    }
+
+    @Test
+    public void writersLappingReader() throws Exception {
+        stress(new ResultPointRing(CAPACITY));
+    }
+
+    @Test
+    public void writersLappingReaderAcrossSequenceWrap() throws Exception {
+        stress(new ResultPointRing(CAPACITY, Integer.MAX_VALUE - WRITERS * POINTS_PER_WRITER / 2));
+    }
+
+    /**
+     * Runs the writers against a reader draining all along, and checks that no point is torn,
+     * that the points of each writer come out in order, and that the ring still works after.
+     */
+    private static void stress(final ResultPointRing ring) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < POINTS_PER_WRITER; i++) {
+                        float x = point(writer, i);
+                        ring.add(x, -x);
+                    }
+                }
+            };
+            thread.start();
+            writers.add(thread);
+        }
+        int[] last = new int[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            last[w] = -1;
+        }
+        float[] points = new float[CAPACITY * 2];
+        long drained = 0;
+        start.countDown();
+        boolean writing = true;
+        while (writing) {
+            writing = false;
+            for (Thread thread : writers) {
+                writing |= thread.isAlive();
+            }
+            drained += check(points, ring.drain(points), last);
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        drained += check(points, ring.drain(points), last);
+        assertFalse(ring.hasPending());
+        assertTrue("Drained " + drained + " of " + WRITERS * POINTS_PER_WRITER,
+                drained > 0 && drained <= WRITERS * POINTS_PER_WRITER);
+        // Nothing is being written any more, so a whole lap comes out again
+        for (int i = 0; i < CAPACITY; i++) {
+            float x = point(0, i);
+            ring.add(x, -x);
+        }
+        assertEquals(CAPACITY, ring.drain(points));
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(point(0, i), points[i * 2], 0f);
+            assertEquals(-point(0, i), points[i * 2 + 1], 0f);
+        }
+    }
+
+    private static int check(float[] points, int count, int[] last) {
+        for (int i = 0; i < count; i++) {
+            float x = points[i * 2];
+            float y = points[i * 2 + 1];
+            if (y != -x) {
+                fail("Torn point " + x + "," + y);
+            }
+            int writer = (int) x / POINTS_PER_WRITER;
+            int index = (int) x % POINTS_PER_WRITER;
+            if (index <= last[writer]) {
+                fail("Point " + index + " of writer " + writer + " after " + last[writer]);
+            }
+            last[writer] = index;
+        }
+        return count;
+    }
+
+    /**
+     * Exact as a float, since below 2^24
+     */
+    private static float point(int writer, int index) {
+        return writer * POINTS_PER_WRITER + index;
+    }
+}